@@ -1,33 +1,60 @@
 package client;
 
 import java.io.*;
-import java.net.*;
-import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 
+import server.Game;
 import server.GameRoom;
-import server.Server;
-import util.StringUtils;
 
+/**
+ * The console front-end of a player.
+ *
+ * The menus are read on the main thread; the requests and the updates pushed
+ * by the server go through a {@link GameClient}, whose updates are printed as
+ * they arrive, see {@link Events}.
+ */
 public class Client implements Runnable {
 	public static final int DEFAULT_PORT = 8094;
 	
-	private Socket connection;
+	/**
+	 * Time to wait for the reply to a request, in seconds
+	 */
+	private static final int REPLY_TIMEOUT = 5;
+	
+	/**
+	 * The connection to the server
+	 */
+	private GameClient client;
 	
 	// player data
 	private int playerId;
 	private String name;
 	
 	// room data
-	private int roomId;
-	private boolean ready;
+	private volatile int roomId;
 	
-	private Scanner s;
+	/**
+	 * The first player ready in the room, who is the game's player 1
+	 */
+	private volatile int firstReady = -1;
+	
+	// game data
+	private volatile int round;
+	
+	/**
+	 * End of the current round, as given by {@link System#nanoTime()}, 0 if the
+	 * server sends the time left itself.
+	 * The countdown is then shown by the client, see {@link #waitForRoundEnd(int)}.
+	 */
+	private volatile long roundDeadline;
 	
-	private ByteBuffer bb = ByteBuffer.allocate(1024);
+	/**
+	 * Notified on every change of the state or of the round
+	 */
+	private final Object lock = new Object();
 	
-	private DataInputStream is;
-	private DataOutputStream os;
+	private Scanner s;
 	
 	private final int mainMenu_CreateRoom = 1;
 	private final int mainMenu_ListRoom = 2;
@@ -41,8 +68,8 @@ public class Client implements Runnable {
 			"4. Exit"
 	};
 	
-	// the state
-	private int state;
+	// the state, also changed by the updates of the server
+	private volatile int state;
 	
 	private final int STATE_MAIN_MENU = 1;
 	private final int STATE_ROOM = 2;
@@ -60,7 +87,13 @@ public class Client implements Runnable {
 		"4. Start game"
 	};
 	
-	private boolean exit = false;
+	private String[] gameMenu = new String[] {
+		"1. Rock",
+		"2. Paper",
+		"3. Scissors"
+	};
+	
+	private volatile boolean exit = false;
 	
 	public static void main(String[] args) {
 		Client client = new Client();
@@ -75,46 +108,160 @@ public class Client implements Runnable {
 		String serverAddress = s.nextLine();
 		
 		try {
-			connection = new Socket(serverAddress, DEFAULT_PORT);
-			
-			is = new DataInputStream(connection.getInputStream());
-			os = new DataOutputStream(connection.getOutputStream());
-			
+			client = new GameClient(serverAddress, DEFAULT_PORT);
+			client.addListener(new Events());
 			registerPlayer();
 		} catch (IOException e) {
 			e.printStackTrace();
+			return;
 		}
 		
 		while(!exit) {
 			try {
-				int selection; 
+				int selection;
 				switch(state) {
 				case STATE_MAIN_MENU:
 					selection = mainMenu();
-					mainMenuHandle(selection);
+					// the state may have changed while reading
+					if(state == STATE_MAIN_MENU) {
+						mainMenuHandle(selection);
+					}
 					break;
 				case STATE_GAME:
-					// TODO: game~
+					playRound();
 					break;
 				case STATE_ROOM:
 					selection = roomMenu();
-					roomHandle(selection);
+					if(state == STATE_ROOM) {
+						roomHandle(selection);
+					}
 					break;
+				default:
+					// not registered
+					exit = true;
 				}
-				
-			} catch (IOException e) {
+			} catch (NoSuchElementException e) {
+				// no more input
 				exit = true;
-				e.printStackTrace();
 			}
 		}
 		
+		disconnect();
+	}
+	
+	/**
+	 * Prints the updates pushed by the server, on the client's reader thread
+	 */
+	private class Events extends GameAdapter {
+		@Override
+		public void playerJoined(int playerId, String name) {
+			System.out.println("Player " + name + " (" + playerId + ") joined the room");
+		}
+		
+		@Override
+		public void playerLeft(int playerId) {
+			System.out.println("Player " + playerId + " left the room");
+		}
+		
+		@Override
+		public void playerReady(int playerId) {
+			if(firstReady == -1) {
+				firstReady = playerId;
+			}
+			System.out.println("Player " + playerId + " is ready");
+		}
+		
+		@Override
+		public void roomDestroyed(int roomId) {
+			System.out.println("The room has been destroyed");
+			setState(STATE_MAIN_MENU);
+		}
+		
+		@Override
+		public void gameStarted(int roomId) {
+			boolean waiting = state == STATE_ROOM;
+			round = 0;
+			setState(STATE_GAME);
+			System.out.println("The game has started!" + (waiting ? " Press enter to play." : ""));
+		}
+		
+		@Override
+		public void roundStarted(int roomId, int round, long deadline) {
+			synchronized(lock) {
+				roundDeadline = deadline;
+				Client.this.round = round;
+				lock.notifyAll();
+			}
+		}
+		
+		@Override
+		public void timeLeft(int roomId, int seconds) {
+			System.out.println("Time left: " + seconds);
+		}
+		
+		@Override
+		public void selectionMade(int playerId, int selection) {
+			if(playerId != Client.this.playerId) {
+				System.out.println("Your opponent has selected");
+			}
+		}
+		
+		@Override
+		public void roundEnded(int roomId, int round, int selection1, int selection2, int winner, int wins1, int wins2) {
+			System.out.println("Round " + round + ": " + getSelectionName(selection1) + " vs "
+					+ getSelectionName(selection2) + ", " + getResult(winner) + " (" + wins1 + " - " + wins2 + ")");
+		}
+		
+		@Override
+		public void gameWon(int roomId, int winner) {
+			System.out.println("Game over: " + getResult(winner));
+		}
+		
+		@Override
+		public void gameEnded(int roomId, boolean canceled) {
+			if(canceled) {
+				System.out.println("The game has been canceled");
+			}
+			firstReady = -1;
+			setState(STATE_ROOM);
+		}
+		
+		@Override
+		public void disconnected(IOException cause) {
+			if(!exit) {
+				System.out.println("Disconnected from the server" + (cause != null ? ": " + cause.getMessage() : ""));
+				exit = true;
+				setState(state);
+			}
+		}
+	}
+	
+	private void setState(int state) {
+		synchronized(lock) {
+			this.state = state;
+			lock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Waits for the reply to a request, printing why it failed if it did
+	 * @param reply the reply
+	 * @return the result, null if the request failed
+	 */
+	private <T> T await(Reply<T> reply) {
 		try {
-			disconnect();
-		} catch (IOException e) {
-			e.printStackTrace();
+			return reply.get(REPLY_TIMEOUT, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			System.out.println("Error: " + e.getCause().getMessage());
+		} catch (TimeoutException e) {
+			reply.cancel(false);
+			System.out.println("No reply from the server");
+		} catch (InterruptedException e) {
+			exit = true;
 		}
+		return null;
 	}
-
+	
 	private int roomMenu() {
 		int selection = -1;
 		while(selection == -1) {
@@ -126,8 +273,11 @@ public class Client implements Runnable {
 				System.out.print("Your selection: ");
 				
 				selection = Integer.parseInt(s.nextLine());
-			} catch (Exception e) {
-				e.printStackTrace();
+			} catch (NumberFormatException e) {
+				if(state != STATE_ROOM) {
+					break;
+				}
+				System.out.println(e);
 				selection = -1;
 			}
 		}
@@ -136,49 +286,169 @@ public class Client implements Runnable {
 	}
 	
 	private void roomHandle(int selection) {
-		System.out.println("NO FUNCTION IMPLEMENTED YET HERE. WELCOME TO ENDLESS LOOP");
 		switch(selection) {
 		case room_deleteRoom:
+			// the state is changed by the update
+			await(client.destroyRoom());
 			break;
 		case room_ready:
+			await(client.setReady());
 			break;
 		case room_listPlayers:
+			List<PlayerInfo> players = await(client.queryPlayers());
+			if(players != null) {
+				System.out.println("ID\tName\t\tMaster");
+				for(PlayerInfo p: players) {
+					System.out.println(p.getId() + "\t" + p.getName() + "\t\t" + (p.isMaster() ? "M" : ""));
+				}
+			}
 			break;
 		case room_start:
+			// ignored by the server unless two players are ready
+			await(client.startGame());
 			break;
 		}
 	}
-
+	
 	/**
-	 * Registers the client as a new player in the server
-	 * @throws IOException
+	 * Asks for the player's selection in the current round, then shows the
+	 * time left until the round ends
 	 */
-	private void registerPlayer() throws IOException {
-		System.out.print("Enter new player name: ");
-		name = s.nextLine();
+	private void playRound() {
+		int current = round;
+		if(current == 0) {
+			waitForRoundEnd(0);
+			return;
+		}
+		
+		long deadline = roundDeadline;
+		System.out.println("Round " + current
+				+ (deadline != 0 ? ", time left: " + getSecondsLeft(deadline) : ""));
+		int selection = gameMenu();
+		if(state != STATE_GAME || round != current) {
+			return;
+		}
+		
+		Boolean accepted = await(client.select(selection));
+		if(Boolean.FALSE.equals(accepted)) {
+			System.out.println("Too late!");
+		} else if(accepted != null) {
+			System.out.println("Waiting for the end of the round...");
+		}
+		
+		waitForRoundEnd(current);
+	}
+	
+	/**
+	 * Shows the seconds left in the round, until the round ends.
+	 * They are counted by the client if the server has sent the round's
+	 * deadline, else they are printed as the server sends them.
+	 * @param current the round
+	 */
+	private void waitForRoundEnd(int current) {
+		boolean timeUp = false;
+		synchronized(lock) {
+			while(!exit && state == STATE_GAME && round == current) {
+				long deadline = roundDeadline;
+				try {
+					if(deadline == 0 || timeUp) {
+						lock.wait();
+						continue;
+					}
+					
+					long remaining = deadline - System.nanoTime();
+					if(remaining > 0) {
+						System.out.println("Time left: " + getSecondsLeft(deadline));
+						lock.wait(Math.min(1000, remaining / 1000000 + 1));
+					} else {
+						System.out.println("Time's up!");
+						timeUp = true;
+					}
+				} catch (InterruptedException e) {
+					exit = true;
+				}
+			}
+		}
+	}
+	
+	private static long getSecondsLeft(long deadline) {
+		return Math.max(0, (deadline - System.nanoTime() + 999999999L) / 1000000000L);
+	}
+	
+	private int gameMenu() {
+		int ret = -1;
+		while(ret == -1) {
+			try {
+				System.out.println("Your selection: ");
+				for(String s: gameMenu) {
+					System.out.println(s);
+				}
+				
+				ret = Integer.parseInt(s.nextLine());
+				
+				if(ret < Game.SELECTION_ROCK || ret > Game.SELECTION_SCISSORS) {
+					throw new Exception("Unknown selection");
+				}
+			} catch (NoSuchElementException e) {
+				throw e;
+			} catch (Exception e) {
+				if(state != STATE_GAME) {
+					break;
+				}
+				System.out.println(e);
+				ret = -1;
+			}
+		}
 		
-		// prepare the response
-		bb.putInt(Server.PLAYER_NAME_SET);
-		bb.put(name.getBytes());
-		os.write(bb.array());
+		return ret;
+	}
+	
+	private static String getSelectionName(int selection) {
+		switch(selection) {
+		case Game.SELECTION_ROCK:
+			return "rock";
+		case Game.SELECTION_PAPER:
+			return "paper";
+		case Game.SELECTION_SCISSORS:
+			return "scissors";
+		default:
+			return "nothing";
+		}
+	}
+	
+	/**
+	 * @param winner 1 or 2 for the game's player 1 or 2, 0 for a draw
+	 */
+	private String getResult(int winner) {
+		if(winner == 0) {
+			return "draw";
+		}
 		
-		bb.clear();
+		int seat = firstReady == playerId ? 1 : 2;
+		return winner == seat ? "you win" : "you lose";
+	}
+	
+	/**
+	 * Registers the client as a new player in the server
+	 */
+	private void registerPlayer() {
+		System.out.print("Enter new player name: ");
+		try {
+			name = s.nextLine();
+		} catch (NoSuchElementException e) {
+			return;
+		}
 		
-		is.readFully(bb.array());
-		// get the player id
-		int resp = bb.getInt();
-		if(resp == Server.PLAYER_REGISTERED) {
-			playerId = bb.getInt();
+		Integer id = await(client.register(name));
+		if(id != null) {
+			playerId = id;
 			System.out.println("Player " + name + " registered with id " + playerId);
 			
 			state = STATE_MAIN_MENU;
-		} else {
-			// something wrong
 		}
-		bb.clear();
 	}
 	
-	private int mainMenu() throws IOException {
+	private int mainMenu() {
 		int ret = -1;
 		while(ret == -1) {
 			try {
@@ -193,6 +463,8 @@ public class Client implements Runnable {
 				if(ret < 1 || ret > mainMenu.length) {
 					throw new Exception("Unknown selection");
 				}
+			} catch (NoSuchElementException e) {
+				throw e;
 			} catch (Exception e) {
 				System.out.println(e);
 				ret = -1;
@@ -202,7 +474,7 @@ public class Client implements Runnable {
 		return ret;
 	}
 	
-	private void mainMenuHandle(int selection) throws IOException {
+	private void mainMenuHandle(int selection) {
 		switch(selection) {
 		case mainMenu_CreateRoom:
 			createRoom();
@@ -211,12 +483,7 @@ public class Client implements Runnable {
 			listRoom();
 			break;
 		case mainMenu_joinRoom:
-			try {
-				listRoom();
-			} catch (IOException e) {
-				// ignore
-			}
-			
+			listRoom();
 			joinRoom();
 			break;
 		case mainMenu_exit:
@@ -225,133 +492,92 @@ public class Client implements Runnable {
 		}
 	}
 	
-	private void joinRoom() throws IOException {
+	private void joinRoom() {
 		System.out.print("Select room id: ");
-		int selection = Integer.parseInt(s.nextLine());
-		
-		bb.putInt(Server.PLAYER_JOIN_ROOM);
-		bb.putInt(playerId);
-		bb.putInt(selection);
-		
-		os.write(bb.array());
-		os.flush();
-		
-		bb.clear();
+		int selection;
+		try {
+			selection = Integer.parseInt(s.nextLine());
+		} catch (NumberFormatException e) {
+			System.out.println(e);
+			return;
+		}
 		
-		is.read(bb.array());
-		int resp = bb.getInt();
-		if(resp == Server.PLAYER_JOIN_ROOM_SUCCESS) {
-			System.out.println("Successfully joined room " + bb.getInt());
+		Integer id = await(client.joinRoom(selection));
+		if(id != null) {
+			roomId = id;
+			firstReady = -1;
+			System.out.println("Successfully joined room " + roomId);
 			state = STATE_ROOM;
-		} else {
-			System.out.print("Error: ");
-			System.out.println(StringUtils.getMessage(bb));
 		}
 	}
-
+	
 	/**
-	 * Get the list of rooms available in the server
-	 * @throws IOException
+	 * Get the list of rooms available in the server.
 	 */
-	private void listRoom() throws IOException {
-		bb.putInt(Server.PLAYER_QUERY_ROOM);
+	private void listRoom() {
+		List<RoomInfo> rooms = await(client.listRooms());
+		if(rooms == null) {
+			return;
+		}
 		
-		os.write(bb.array());
-		os.flush();
-		bb.clear();
+		System.out.println("No.\tRoom Name\t\tConnected Players\tMasterID\tState");
+		for(RoomInfo room: rooms) {
+			printRoom(room);
+		}
 		
-		connection.setSoTimeout(3000);
-		try {
-			Thread.sleep(500);
-			System.out.println("No.\tRoom Name\t\tConnected Players\tMasterID\tState");
-			while(is.read(bb.array()) != -1) {
-				int resp = bb.getInt();
-				if(resp == Server.PLAYER_ROOM_INFO) {
-					StringBuilder sb = new StringBuilder();
-					
-					int roomId = bb.getInt();
-					String roomName = StringUtils.getName(bb);
-					
-					int connectedPlayers = bb.getInt();
-					int roomMasterId = bb.getInt();
-					int roomState = bb.getInt();
-					String state;
-					switch(roomState) {
-					case GameRoom.ROOM_WAITING:
-						state = "Waiting for players";
-						break;
-					case GameRoom.ROOM_PLAYING:
-						state = "Game running";
-						break;
-					default:
-						state = "Unknown";
-					}
-					
-					// print the room state
-					sb.append(roomId).append("\t");
-					sb.append(roomName).append("\t");
-					sb.append(connectedPlayers).append("\t").append("\t");
-					sb.append(roomMasterId).append("\t");
-					sb.append(state);
-					
-					System.out.println(sb.toString());
-				}
-				
-				bb.clear();
-			}
-		} catch (SocketTimeoutException e) {
-			System.out.println("No more room available");
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			throw e;
-		} finally {
-			connection.setSoTimeout(0);
+		if(rooms.isEmpty()) {
+			System.out.println("No room available");
 		}
 	}
-
-	private void createRoom() throws IOException {
-		System.out.print("Write the name of your room: ");
-		String name = s.nextLine();
+	
+	/**
+	 * Prints a room of the list
+	 */
+	private void printRoom(RoomInfo room) {
+		StringBuilder sb = new StringBuilder();
 		
-		// prepare
-		bb.putInt(Server.PLAYER_CREATE_ROOM).putInt(playerId);
-		bb.put(name.getBytes());
+		String state;
+		switch(room.getState()) {
+		case GameRoom.ROOM_WAITING:
+			state = "Waiting for players";
+			break;
+		case GameRoom.ROOM_PLAYING:
+			state = "Game running";
+			break;
+		default:
+			state = "Unknown";
+		}
 		
-		// write
-		os.write(bb.array());
-		os.flush();
+		// print the room state
+		sb.append(room.getId()).append("\t");
+		sb.append(room.getName()).append("\t");
+		sb.append(room.getConnectedPlayers()).append("\t").append("\t");
+		sb.append(room.getMasterId()).append("\t");
+		sb.append(state);
 		
-		// clear
-		bb.clear();
+		System.out.println(sb.toString());
+	}
+	
+	private void createRoom() {
+		System.out.print("Write the name of your room: ");
+		String name = s.nextLine();
 		
-		// read
-		is.readFully(bb.array());
-		int resp = bb.getInt();
-		if(resp == Server.PLAYER_CREATE_ROOM_SUCCESS) {
+		Integer id = await(client.createRoom(name));
+		if(id != null) {
+			roomId = id;
+			firstReady = -1;
 			System.out.println("Successfully created new room:");
-			System.out.println("ID: " + bb.getInt());
+			System.out.println("ID: " + roomId);
 			System.out.println("Name: " + name);
 			
 			state = STATE_ROOM;
-		} else {
-			System.out.println("Caught response: " + resp);
-			System.out.println("Message: " + StringUtils.getMessage(bb));
 		}
-		
-		bb.clear();
 	}
 	
-	private void disconnect() throws IOException {
+	private void disconnect() {
 		System.out.print("Disconnecting....");
 		
-		bb.putInt(Server.PLAYER_DISCONNECT);
-		
-		os.write(bb.array());
-		
-		os.close();
-		is.close();
 		s.close();
-		connection.close();
+		client.disconnect();
 	}
 }
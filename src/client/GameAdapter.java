@@ -0,0 +1,66 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * A {@link GameListener} ignoring every update, to be extended
+ * @author alvin_nt
+ *
+ */
+public class GameAdapter implements GameListener {
+	@Override
+	public void playerJoined(int playerId, String name) {
+	}
+
+	@Override
+	public void playerLeft(int playerId) {
+	}
+
+	@Override
+	public void playerReady(int playerId) {
+	}
+
+	@Override
+	public void roomDestroyed(int roomId) {
+	}
+
+	@Override
+	public void gameStarted(int roomId) {
+	}
+
+	@Override
+	public void roundStarted(int roomId, int round, long deadline) {
+	}
+
+	@Override
+	public void timeLeft(int roomId, int seconds) {
+	}
+
+	@Override
+	public void selectionMade(int playerId, int selection) {
+	}
+
+	@Override
+	public void selectionRejected(int roomId, int selection) {
+	}
+
+	@Override
+	public void roundEnded(int roomId, int round, int selection1, int selection2, int winner, int wins1, int wins2) {
+	}
+
+	@Override
+	public void gameWon(int roomId, int winner) {
+	}
+
+	@Override
+	public void gameEnded(int roomId, boolean canceled) {
+	}
+
+	@Override
+	public void quickMatchFound(int roomId, int number, int opponentId, String opponentName, int opponentRating) {
+	}
+
+	@Override
+	public void disconnected(IOException cause) {
+	}
+}
@@ -0,0 +1,724 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import server.Game;
+import server.Server;
+import util.StringUtils;
+
+/**
+ * A connection to the server for programs: bots, tools, or a user interface
+ * such as the console {@link Client}.
+ *
+ * The requests return at once with a {@link Reply}, completed when the server
+ * has answered. The packets are read by a reader thread, which completes the
+ * replies and passes the updates pushed by the server to the
+ * {@link GameListener}s. Requests may be sent from any thread.
+ *
+ * Every request carries a correlation id, echoed by the server in its replies,
+ * so several requests may be sent without waiting: a join, then a ready, is
+ * answered in that order. The packets without an id, such as the start of a
+ * quick match, complete the oldest waiting request they can answer.
+ * @author alvin_nt
+ *
+ */
+public class GameClient {
+	private final ProtocolClient protocol;
+
+	/**
+	 * Guards the sending of the requests, with the queue of waiting requests
+	 */
+	private final Object sendLock = new Object();
+
+	/**
+	 * The requests waiting for their reply, oldest first. Guarded by the sendLock.
+	 */
+	private final List<Request<?>> pending = new LinkedList<>();
+
+	/**
+	 * The correlation id of the last request sent, 0 for none. Guarded by the sendLock.
+	 */
+	private int lastCorrelation;
+
+	private final List<GameListener> listeners = new CopyOnWriteArrayList<>();
+
+	private final Thread reader;
+
+	private volatile int playerId;
+	private volatile int roomId = -1;
+
+	private volatile boolean closed;
+
+	/**
+	 * A request waiting for its reply
+	 */
+	private abstract static class Request<T> extends Reply<T> {
+		/**
+		 * The request's packet code
+		 */
+		final int code;
+
+		/**
+		 * The request's correlation id, set once it is sent
+		 */
+		int correlation;
+
+		Request(int code) {
+			this.code = code;
+		}
+
+		/**
+		 * Offers a packet to the request. The request leaves the queue once it is done.
+		 * @param code the packet code
+		 * @param bb the packet, positioned after the code
+		 * @return whether the packet has been taken by the request, so it is not
+		 * 			offered to the requests sent after it
+		 */
+		abstract boolean handle(int code, ByteBuffer bb);
+	}
+
+	/**
+	 * Connects to a server, then starts reading the packets
+	 * @param host the server's address
+	 * @param port the server's port
+	 * @throws IOException
+	 */
+	public GameClient(String host, int port) throws IOException {
+		protocol = new ProtocolClient(host, port);
+
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				read();
+			}
+		}, "client-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public void addListener(GameListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(GameListener listener) {
+		listeners.remove(listener);
+	}
+
+	public int getPlayerId() {
+		return playerId;
+	}
+
+	/**
+	 * @return the room the player is in, -1 if none
+	 */
+	public int getRoomId() {
+		return roomId;
+	}
+
+	public int getProtocolVersion() {
+		return protocol.getProtocolVersion();
+	}
+
+	/**
+	 * Registers the client as a new player in the server
+	 * @param name the player's name
+	 * @return the player's id
+	 */
+	public Reply<Integer> register(String name) {
+		Request<Integer> request = new Request<Integer>(Server.PLAYER_NAME_SET) {
+			@Override
+			boolean handle(int code, ByteBuffer bb) {
+				if(code != Server.PLAYER_REGISTERED) {
+					return false;
+				}
+				playerId = bb.getInt();
+				complete(playerId);
+				return true;
+			}
+		};
+
+		synchronized(sendLock) {
+			StringUtils.putName(packet(request), name);
+			send(request);
+		}
+		return request;
+	}
+
+	/**
+	 * Creates a room, with this player as its master
+	 * @param name the room's name
+	 * @return the room's id
+	 */
+	public Reply<Integer> createRoom(String name) {
+		Request<Integer> request = new Request<Integer>(Server.PLAYER_CREATE_ROOM) {
+			@Override
+			boolean handle(int code, ByteBuffer bb) {
+				if(code == Server.PLAYER_CREATE_ROOM_SUCCESS) {
+					roomId = bb.getInt();
+					complete(roomId);
+				} else if(code == Server.PLAYER_CREATE_ROOM_FAIL) {
+					fail(new IOException(StringUtils.getMessage(bb).trim()));
+				} else {
+					return false;
+				}
+				return true;
+			}
+		};
+
+		synchronized(sendLock) {
+			StringUtils.putName(packet(request).putInt(playerId), name);
+			send(request);
+		}
+		return request;
+	}
+
+	/**
+	 * Joins a room
+	 * @param id the room's id
+	 * @return the room's id; fails if the room cannot be joined
+	 */
+	public Reply<Integer> joinRoom(final int id) {
+		Request<Integer> request = new Request<Integer>(Server.PLAYER_JOIN_ROOM) {
+			@Override
+			boolean handle(int code, ByteBuffer bb) {
+				if(code == Server.PLAYER_JOIN_ROOM_SUCCESS) {
+					roomId = id;
+					complete(id);
+				} else if(code == Server.PLAYER_JOIN_ROOM_FAIL) {
+					fail(new IOException(StringUtils.getMessage(bb).trim()));
+				} else {
+					return false;
+				}
+				return true;
+			}
+		};
+
+		synchronized(sendLock) {
+			packet(request).putInt(playerId).putInt(id);
+			send(request);
+		}
+		return request;
+	}
+
+	/**
+	 * Gets the whole room list
+	 * @return the rooms
+	 */
+	public Reply<List<RoomInfo>> listRooms() {
+		Request<List<RoomInfo>> request = new Request<List<RoomInfo>>(Server.PLAYER_QUERY_ROOM_PAGE) {
+			private final List<RoomInfo> rooms = new ArrayList<>();
+
+			@Override
+			boolean handle(int code, ByteBuffer bb) {
+				if(code == Server.PLAYER_ROOM_PAGE) {
+					bb.getInt(); // version
+					bb.getInt(); // total
+					bb.getInt(); // next cursor
+					int count = bb.getInt();
+					for(int i = 0; i < count; i++) {
+						rooms.add(RoomInfo.read(bb));
+					}
+				} else if(code == Server.PLAYER_ROOM_LIST_END) {
+					complete(rooms);
+				} else {
+					return false;
+				}
+				return true;
+			}
+		};
+
+		synchronized(sendLock) {
+			// cursor, no limit, no list version held
+			packet(request).putInt(0).putInt(0).putInt(0);
+			send(request);
+		}
+		return request;
+	}
+
+	/**
+	 * Gets the players of the player's room
+	 * @return the players, empty if the room does not exist
+	 */
+	public Reply<List<PlayerInfo>> queryPlayers() {
+		Request<List<PlayerInfo>> request = new Request<List<PlayerInfo>>(Server.ROOM_QUERY_PLAYERS) {
+			private final List<PlayerInfo> players = new ArrayList<>();
+
+			@Override
+			boolean handle(int code, ByteBuffer bb) {
+				if(code == Server.ROOM_PLAYER_INFO) {
+					players.add(PlayerInfo.read(bb));
+				} else if(code == Server.ROOM_PLAYER_INFO_END) {
+					complete(players);
+				} else {
+					return false;
+				}
+				return true;
+			}
+		};
+
+		synchronized(sendLock) {
+			packet(request).putInt(roomId);
+			send(request);
+		}
+		return request;
+	}
+
+	/**
+	 * Sets that the player is ready to play in its room
+	 * @return done once the room has taken it
+	 */
+	public Reply<Void> setReady() {
+		Request<Void> request = new Request<Void>(Server.ROOM_PLAYER_READY) {
+			@Override
+			boolean handle(int code, ByteBuffer bb) {
+				if(code == Server.ROOM_PLAYER_INFO_READY && bb.getInt() == playerId) {
+					complete(null);
+					return true;
+				}
+				return failOnDestroyed(this, code);
+			}
+		};
+
+		synchronized(sendLock) {
+			packet(request).putInt(playerId);
+			send(request);
+		}
+		return request;
+	}
+
+	/**
+	 * Asks the server to start the game of the player's room.
+	 * The server ignores it unless two players are ready.
+	 * @return done once the game has started
+	 */
+	public Reply<Void> startGame() {
+		Request<Void> request = new Request<Void>(Server.ROOM_GAME_START) {
+			@Override
+			boolean handle(int code, ByteBuffer bb) {
+				if(code == Server.ROOM_GAME_START) {
+					complete(null);
+					return true;
+				}
+				return failOnDestroyed(this, code);
+			}
+		};
+
+		synchronized(sendLock) {
+			packet(request).putInt(playerId).putInt(roomId);
+			send(request);
+		}
+		return request;
+	}
+
+	/**
+	 * Sends the player's selection for the current round
+	 * @param selection one of the selections of {@link Game}
+	 * @return true once the game has taken it, false if it came after the end of the round
+	 * 			or after the player's first selection of the round
+	 */
+	public Reply<Boolean> select(int selection) {
+		Request<Boolean> request = new Request<Boolean>(Server.GAME_UPDATE_SELECTION) {
+			@Override
+			boolean handle(int code, ByteBuffer bb) {
+				if(code == Server.GAME_SELECTION_UPDATE && bb.getInt() == playerId) {
+					complete(true);
+				} else if(code == Server.GAME_SELECTION_REJECTED) {
+					complete(false);
+				} else if(code == Server.ROOM_GAME_END || code == Server.ROOM_GAME_CANCEL) {
+					fail(new IOException("The game is over"));
+				} else {
+					return failOnDestroyed(this, code);
+				}
+				return true;
+			}
+		};
+
+		synchronized(sendLock) {
+			packet(request).putInt(playerId).putInt(selection);
+			send(request);
+		}
+		return request;
+	}
+
+	/**
+	 * Destroys the player's room. Only the room's master may destroy it.
+	 * @return done once the room has been destroyed
+	 */
+	public Reply<Void> destroyRoom() {
+		Request<Void> request = new Request<Void>(Server.PLAYER_DESTROY_ROOM) {
+			@Override
+			boolean handle(int code, ByteBuffer bb) {
+				if(code == Server.ROOM_DESTROYED) {
+					complete(null);
+				}
+				return false;
+			}
+		};
+
+		synchronized(sendLock) {
+			packet(request).putInt(roomId).putInt(playerId);
+			send(request);
+		}
+		return request;
+	}
+
+	/**
+	 * Waits for an opponent of a similar rating; the game starts as soon as
+	 * one is found, see {@link GameListener#quickMatchFound(int, int, int, String, int)}
+	 * @return the id of the room of the game
+	 */
+	public Reply<Integer> quickMatch() {
+		Request<Integer> request = new Request<Integer>(Server.PLAYER_QUICK_MATCH) {
+			@Override
+			boolean handle(int code, ByteBuffer bb) {
+				if(code == Server.PLAYER_QUICK_MATCH_FOUND) {
+					complete(bb.getInt());
+				} else if(code == Server.PLAYER_QUICK_MATCH_FAIL) {
+					fail(new IOException(StringUtils.getMessage(bb).trim()));
+				} else {
+					return false;
+				}
+				return true;
+			}
+		};
+
+		synchronized(sendLock) {
+			packet(request);
+			send(request);
+		}
+		return request;
+	}
+
+	/**
+	 * Stops waiting for an opponent
+	 */
+	public void cancelQuickMatch() {
+		synchronized(sendLock) {
+			protocol.packet().putInt(Server.PLAYER_QUICK_MATCH_CANCEL);
+			try {
+				protocol.send();
+			} catch (IOException e) {
+				close(e);
+			}
+		}
+	}
+
+	/**
+	 * Tells the server the player leaves, then closes the connection.
+	 * The waiting requests fail.
+	 */
+	public void disconnect() {
+		synchronized(sendLock) {
+			if(closed) {
+				return;
+			}
+			protocol.packet().putInt(Server.PLAYER_DISCONNECT);
+			try {
+				protocol.send();
+			} catch (IOException e) {
+				// closed anyway
+			}
+		}
+		close(null);
+	}
+
+	/**
+	 * Fails a request on {@link Server#ROOM_DESTROYED}, leaving the packet to the others
+	 * @return false
+	 */
+	private static boolean failOnDestroyed(Request<?> request, int code) {
+		if(code == Server.ROOM_DESTROYED) {
+			request.fail(new IOException("The room has been destroyed"));
+		}
+		return false;
+	}
+
+	/**
+	 * Starts the packet of a request, with the request's code and a new correlation id.
+	 * Must be called while holding the sendLock.
+	 * @return the buffer to write the rest of the request in
+	 */
+	private ByteBuffer packet(Request<?> request) {
+		// 0 stands for no id
+		if(++lastCorrelation == 0) {
+			lastCorrelation = 1;
+		}
+		request.correlation = lastCorrelation;
+
+		return protocol.packet().putInt(request.code | Server.CORRELATION_FLAG).putInt(request.correlation);
+	}
+
+	/**
+	 * Queues a request, then sends it. Must be called while holding the sendLock.
+	 */
+	private void send(Request<?> request) {
+		if(closed) {
+			request.fail(new IOException("Connection closed"));
+			return;
+		}
+
+		// queued first, the reply may come before send() returns
+		pending.add(request);
+		try {
+			protocol.send();
+		} catch (IOException e) {
+			close(e);
+		}
+	}
+
+	/**
+	 * Reads the packets, until the connection is closed
+	 */
+	private void read() {
+		IOException cause = null;
+		try {
+			while(protocol.receive()) {
+				handle(protocol.getBuffer());
+			}
+		} catch (IOException e) {
+			cause = e;
+		}
+		close(cause);
+	}
+
+	/**
+	 * Completes the requests answered by a packet, then passes it to the listeners
+	 */
+	private void handle(ByteBuffer bb) {
+		int code = bb.getInt();
+		int correlation = 0;
+		if((code & Server.CORRELATION_FLAG) != 0) {
+			code &= ~Server.CORRELATION_FLAG;
+			correlation = bb.getInt();
+		}
+		int start = bb.position();
+
+		// the requests answered by the packet have been sent before it was read,
+		// so they are in the copy. The replies are completed without the lock,
+		// as their callbacks may send requests.
+		Request<?>[] waiting;
+		synchronized(sendLock) {
+			waiting = pending.toArray(new Request<?>[pending.size()]);
+		}
+
+		boolean anyDone = false;
+		for(Request<?> request: waiting) {
+			boolean taken = false;
+			if(request.isDone()) {
+				// canceled by the caller
+			} else if(correlation != 0 && correlation != request.correlation) {
+				// the reply to another request; the room may be gone with it
+				if(code == Server.ROOM_DESTROYED) {
+					request.handle(code, bb);
+				}
+			} else if(code == Server.UNKNOWN_COMMAND) {
+				// the server tells which request it did not know
+				taken = correlation != 0 || bb.getInt(start) == request.code;
+				if(taken) {
+					request.fail(new IOException("Unknown command: " + request.code));
+				}
+			} else {
+				taken = request.handle(code, bb);
+			}
+			bb.position(start);
+
+			// done, or canceled by the caller
+			anyDone |= request.isDone();
+			if(taken) {
+				break;
+			}
+		}
+
+		if(anyDone) {
+			synchronized(sendLock) {
+				Iterator<Request<?>> it = pending.iterator();
+				while(it.hasNext()) {
+					if(it.next().isDone()) {
+						it.remove();
+					}
+				}
+			}
+		}
+
+		try {
+			dispatch(code, bb);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Passes an update to the listeners
+	 */
+	private void dispatch(int code, ByteBuffer bb) {
+		int id;
+		switch(code) {
+		case Server.ROOM_PLAYER_JOINED:
+			id = bb.getInt();
+			String name = StringUtils.getName(bb).trim();
+			for(GameListener listener: listeners) {
+				listener.playerJoined(id, name);
+			}
+			break;
+		case Server.ROOM_PLAYER_DISCONNECTED:
+			id = bb.getInt();
+			for(GameListener listener: listeners) {
+				listener.playerLeft(id);
+			}
+			break;
+		case Server.ROOM_PLAYER_INFO_READY:
+			id = bb.getInt();
+			for(GameListener listener: listeners) {
+				listener.playerReady(id);
+			}
+			break;
+		case Server.ROOM_DESTROYED:
+			id = roomId;
+			roomId = -1;
+			for(GameListener listener: listeners) {
+				listener.roomDestroyed(id);
+			}
+			break;
+		case Server.ROOM_GAME_START:
+			id = bb.getInt();
+			for(GameListener listener: listeners) {
+				listener.gameStarted(id);
+			}
+			break;
+		case Server.GAME_STATE_UPDATE:
+			id = bb.getInt();
+			if(bb.getInt() == Game.GAME_START) {
+				long deadline = readDeadline(bb);
+				for(GameListener listener: listeners) {
+					listener.roundStarted(id, 1, deadline);
+				}
+			}
+			break;
+		case Server.GAME_TIME_UPDATE:
+			id = bb.getInt();
+			int seconds = bb.getInt();
+			for(GameListener listener: listeners) {
+				listener.timeLeft(id, seconds);
+			}
+			break;
+		case Server.GAME_SELECTION_UPDATE:
+			id = bb.getInt();
+			int selection = bb.getInt();
+			for(GameListener listener: listeners) {
+				listener.selectionMade(id, selection);
+			}
+			break;
+		case Server.GAME_SELECTION_REJECTED:
+			id = bb.getInt();
+			int rejected = bb.getInt();
+			for(GameListener listener: listeners) {
+				listener.selectionRejected(id, rejected);
+			}
+			break;
+		case Server.GAME_ROUND_RESULT:
+			dispatchRoundResult(bb);
+			break;
+		case Server.GAME_WINNER:
+			id = bb.getInt();
+			int winner = bb.getInt();
+			for(GameListener listener: listeners) {
+				listener.gameWon(id, winner);
+			}
+			break;
+		case Server.ROOM_GAME_END:
+		case Server.ROOM_GAME_CANCEL:
+			id = bb.getInt();
+			for(GameListener listener: listeners) {
+				listener.gameEnded(id, code == Server.ROOM_GAME_CANCEL);
+			}
+			break;
+		case Server.PLAYER_QUICK_MATCH_FOUND:
+			roomId = id = bb.getInt();
+			int number = bb.getInt();
+			int opponentId = bb.getInt();
+			String opponentName = StringUtils.getName(bb).trim();
+			int opponentRating = bb.getInt();
+			for(GameListener listener: listeners) {
+				listener.quickMatchFound(id, number, opponentId, opponentName, opponentRating);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Passes the result of a round to the listeners, then the start of the next round if any
+	 */
+	private void dispatchRoundResult(ByteBuffer bb) {
+		int id = bb.getInt();
+		int round = bb.getInt();
+		int selection1 = bb.getInt();
+		int selection2 = bb.getInt();
+		int winner = bb.getInt();
+		int wins1 = bb.getInt();
+		int wins2 = bb.getInt();
+		int next = bb.getInt();
+		for(GameListener listener: listeners) {
+			listener.roundEnded(id, round, selection1, selection2, winner, wins1, wins2);
+		}
+
+		if(next != 0) {
+			long deadline = readDeadline(bb);
+			for(GameListener listener: listeners) {
+				listener.roundStarted(id, next, deadline);
+			}
+		}
+	}
+
+	/**
+	 * Reads the deadline of a round, if the server has sent one:
+	 * 		[8 byte -- deadline, in milliseconds since the epoch][4 byte -- round duration, in milliseconds]
+	 * The deadline is only trusted as far as the duration allows, in case the
+	 * clocks of the client and the server differ.
+	 * @return the deadline as given by {@link System#nanoTime()}, 0 if none
+	 */
+	private static long readDeadline(ByteBuffer bb) {
+		if(bb.remaining() < 12) {
+			return 0;
+		}
+
+		long deadline = bb.getLong();
+		int duration = bb.getInt();
+
+		long remaining = Math.max(0, Math.min(duration, deadline - System.currentTimeMillis()));
+		long end = System.nanoTime() + remaining * 1000000L;
+		// 0 stands for no deadline
+		return end != 0 ? end : 1;
+	}
+
+	/**
+	 * Closes the connection once, failing the waiting requests
+	 */
+	private void close(IOException cause) {
+		List<Request<?>> failed;
+		synchronized(sendLock) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+
+			failed = new ArrayList<>(pending);
+			pending.clear();
+		}
+
+		try {
+			protocol.close();
+		} catch (IOException e) {
+			// already closed
+		}
+
+		for(Request<?> request: failed) {
+			request.fail(cause != null ? cause : new IOException("Connection closed"));
+		}
+		for(GameListener listener: listeners) {
+			listener.disconnected(cause);
+		}
+	}
+}
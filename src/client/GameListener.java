@@ -0,0 +1,102 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * Receives the updates the server pushes to a {@link GameClient}, about the
+ * player's room and the game running in it.
+ *
+ * The methods are called on the client's reader thread, in the order the
+ * updates have arrived. They must not block, and must not wait for a
+ * {@link Reply}: the reply would be read by the same thread.
+ * Extend {@link GameAdapter} to only handle some of the updates.
+ * @author alvin_nt
+ *
+ */
+public interface GameListener {
+	/**
+	 * A player has joined the room
+	 */
+	void playerJoined(int playerId, String name);
+
+	/**
+	 * A player has left the room
+	 */
+	void playerLeft(int playerId);
+
+	/**
+	 * A player of the room is ready to play. The first player ready is the
+	 * game's player 1, the second is its player 2.
+	 */
+	void playerReady(int playerId);
+
+	/**
+	 * The room has been destroyed; the player is in no room anymore
+	 */
+	void roomDestroyed(int roomId);
+
+	/**
+	 * The game of the room has started
+	 */
+	void gameStarted(int roomId);
+
+	/**
+	 * A round of the game has started
+	 * @param round the round, from 1
+	 * @param deadline the end of the round as given by {@link System#nanoTime()},
+	 * 			or 0 if the server sends the time left, see {@link #timeLeft(int, int)}
+	 */
+	void roundStarted(int roomId, int round, long deadline);
+
+	/**
+	 * The seconds left in the current round, sent every second unless the
+	 * round has a deadline
+	 */
+	void timeLeft(int roomId, int seconds);
+
+	/**
+	 * A player has selected, see the selections of {@link server.Game}.
+	 * The opponent's selection is {@link server.Game#SELECTION_EMPTY}: it is
+	 * only shown once the round has ended, see {@link #roundEnded(int, int, int, int, int, int, int)}.
+	 */
+	void selectionMade(int playerId, int selection);
+
+	/**
+	 * The player's selection came after the end of the round, or after its
+	 * first selection of the round
+	 */
+	void selectionRejected(int roomId, int selection);
+
+	/**
+	 * A round has ended, with the selections of both players
+	 * @param winner 1 or 2 for the game's player 1 or 2, 0 for a draw
+	 * @param wins1 the rounds won by player 1 so far
+	 * @param wins2 the rounds won by player 2 so far
+	 */
+	void roundEnded(int roomId, int round, int selection1, int selection2, int winner, int wins1, int wins2);
+
+	/**
+	 * The match is over
+	 * @param winner 1 or 2 for the game's player 1 or 2, 0 for a draw
+	 */
+	void gameWon(int roomId, int winner);
+
+	/**
+	 * The game has ended; the players of the room have to get ready again
+	 * @param canceled whether a player has left during the game
+	 */
+	void gameEnded(int roomId, boolean canceled);
+
+	/**
+	 * The player has been matched with an opponent, and put in a new room
+	 * where the game starts right away
+	 * @param number 1 or 2, the player's number in the game
+	 */
+	void quickMatchFound(int roomId, int number, int opponentId, String opponentName, int opponentRating);
+
+	/**
+	 * The connection to the server has been closed
+	 * @param cause the error, or null if the connection has been closed normally
+	 */
+	void disconnected(IOException cause);
+}
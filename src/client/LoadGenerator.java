@@ -0,0 +1,501 @@
+package client;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import server.Game;
+import server.Server;
+
+/**
+ * Simulates many players at once, without any user interface, to measure the
+ * server under load. Usage:
+ * 		java client.LoadGenerator [server address [port]]
+ *
+ * The players play by pairs, each pair on its own thread with two
+ * {@link ProtocolClient}s. A pair registers both players, then runs sessions
+ * picked at random from a mix, until the end of the run:
+ * 		list	-- the first player reads the whole room list
+ * 		game	-- the first player creates a room unless the pair has one, the
+ * 				second joins it; both get ready, the first starts the game and
+ * 				both select until the match is over. The room is kept for the next game.
+ * 		churn	-- both players leave, which destroys their room, then connect
+ * 				and register again
+ * A pair getting an unexpected reply, or none in time, counts an error and
+ * connects again.
+ *
+ * Every request is timed from the moment it is sent to its reply. At the end
+ * of the run the throughput and the latency percentiles of every request code
+ * are printed, and a summary line every few seconds meanwhile.
+ *
+ * The run is set with system properties:
+ * 		-Djankenpon.load.players=n			number of players, rounded up to pairs (100)
+ * 		-Djankenpon.load.duration=seconds	measured time (30)
+ * 		-Djankenpon.load.warmup=seconds		time before measuring (5)
+ * 		-Djankenpon.load.mix=list:1,game:4,churn:1	weights of the sessions
+ * 		-Djankenpon.load.thinkTime=millis	pause of a pair between two sessions (0)
+ * 		-Djankenpon.load.timeout=millis		time to wait for a reply (5000)
+ * 		-Djankenpon.load.reportInterval=seconds	time between two summary lines (5)
+ * -Djankenpon.protocol=legacy makes the players use the legacy framing.
+ *
+ * 10 000 players against the blocking transport, with a thread per player:
+ * 		server:	java -Xss256k -Djankenpon.executor=thread -Djankenpon.backlog=4096 server.Server
+ * 		load:	java -Xss256k -Djankenpon.load.players=10000 -Djankenpon.load.warmup=60
+ * 				-Djankenpon.load.thinkTime=1000 -Djankenpon.load.timeout=30000 client.LoadGenerator
+ * Each side holds a socket per player, so both need ulimit -n above 10 000, and
+ * the user must be allowed the threads (ulimit -u): one per player on the
+ * server, one per pair here. -Xss256k keeps the stacks of the other threads
+ * small, such as the pairs' and the writers'. The backlog lets the
+ * connections of the warmup queue up instead of being refused.
+ * @author alvin_nt
+ *
+ */
+public class LoadGenerator {
+	// the sessions of the mix
+	private static final int SESSION_LIST = 0;
+	private static final int SESSION_GAME = 1;
+	private static final int SESSION_CHURN = 2;
+
+	private static final String[] SESSION_NAMES = new String[] {
+		"list", "game", "churn"
+	};
+
+	/**
+	 * The timed requests, and their names in the report
+	 */
+	private static final int[] OPCODES = new int[] {
+		Server.PROTOCOL_HELLO,
+		Server.PLAYER_NAME_SET,
+		Server.PLAYER_QUERY_ROOM_PAGE,
+		Server.PLAYER_CREATE_ROOM,
+		Server.PLAYER_JOIN_ROOM,
+		Server.ROOM_PLAYER_READY,
+		Server.ROOM_GAME_START,
+		Server.GAME_UPDATE_SELECTION
+	};
+
+	private static final String[] OPCODE_NAMES = new String[] {
+		"hello", "register", "list rooms", "create room", "join room", "ready", "start game", "select"
+	};
+
+	private static final int OP_HELLO = 0;
+	private static final int OP_REGISTER = 1;
+	private static final int OP_LIST = 2;
+	private static final int OP_CREATE = 3;
+	private static final int OP_JOIN = 4;
+	private static final int OP_READY = 5;
+	private static final int OP_START = 6;
+	private static final int OP_SELECT = 7;
+
+	private final String host;
+	private final int port;
+
+	private final int pairCount;
+	private final long duration;
+	private final long warmup;
+	private final int[] mix;
+	private final long thinkTime;
+	private final int timeout;
+	private final long reportInterval;
+
+	private final Latency[] latencies;
+
+	private volatile boolean running;
+
+	/**
+	 * Whether the requests are recorded; not during the warmup
+	 */
+	private volatile boolean measuring;
+
+	/**
+	 * The latencies of a request code, in microseconds.
+	 *
+	 * The latencies are counted in buckets: the ones below 128 microseconds
+	 * exactly, the larger ones with their 7 most significant bits, so a
+	 * percentile is off by less than 2%.
+	 */
+	private static final class Latency {
+		private static final int SUB_BITS = 7;
+		private static final int SUB_COUNT = 1 << SUB_BITS;
+		private static final int HALF_COUNT = SUB_COUNT / 2;
+
+		/**
+		 * Enough buckets for an hour
+		 */
+		private static final int BUCKET_COUNT = index(3600L * 1000000L) + 1;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		private static int index(long micros) {
+			if(micros < SUB_COUNT) {
+				return (int) micros;
+			}
+			// the bits dropped from the value, at least 1
+			int shift = 64 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+			return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) ((micros >> shift) - HALF_COUNT);
+		}
+
+		/**
+		 * @return the lowest latency of a bucket
+		 */
+		private static long lowest(int index) {
+			if(index < SUB_COUNT) {
+				return index;
+			}
+			int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+			return ((index - SUB_COUNT) % HALF_COUNT + HALF_COUNT) << shift;
+		}
+
+		void record(long micros) {
+			buckets.incrementAndGet(Math.min(index(micros), BUCKET_COUNT - 1));
+			count.incrementAndGet();
+
+			long m;
+			while(micros > (m = max.get()) && !max.compareAndSet(m, micros));
+		}
+
+		void error() {
+			errors.incrementAndGet();
+		}
+
+		long getCount() {
+			return count.get();
+		}
+
+		long getErrors() {
+			return errors.get();
+		}
+
+		long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * @param fraction the fraction of the requests, such as 0.99
+		 * @return the latency below which that fraction of the requests has been answered
+		 */
+		long percentile(double fraction) {
+			long total = count.get();
+			if(total == 0) {
+				return 0;
+			}
+
+			long rank = (long) Math.ceil(total * fraction);
+			long seen = 0;
+			for(int i = 0; i < BUCKET_COUNT; i++) {
+				seen += buckets.get(i);
+				if(seen >= rank) {
+					return lowest(i);
+				}
+			}
+			return max.get();
+		}
+	}
+
+	/**
+	 * Two players playing against each other, on one thread
+	 */
+	private final class Pair implements Runnable {
+		private final int number;
+		private final Random random;
+
+		private ProtocolClient first;
+		private ProtocolClient second;
+
+		/**
+		 * The request being waited for, to count its error
+		 */
+		private int op;
+
+		Pair(int number) {
+			this.number = number;
+			random = new Random(number);
+		}
+
+		@Override
+		public void run() {
+			while(running) {
+				try {
+					connect();
+					while(running) {
+						runSession(pickSession(random));
+						if(thinkTime > 0) {
+							Thread.sleep(thinkTime);
+						}
+					}
+				} catch (IOException e) {
+					if(running) {
+						error(op);
+					}
+				} catch (InterruptedException e) {
+					break;
+				} finally {
+					close();
+				}
+			}
+		}
+
+		private void connect() throws IOException {
+			first = connect("load" + number + "a");
+			second = connect("load" + number + "b");
+		}
+
+		private ProtocolClient connect(String name) throws IOException {
+			op = OP_HELLO;
+			long start = System.nanoTime();
+			ProtocolClient player = new ProtocolClient(host, port);
+			record(OP_HELLO, start);
+			player.setTimeout(timeout);
+
+			op = OP_REGISTER;
+			start = System.nanoTime();
+			try {
+				expect(player.register(name), Server.PLAYER_REGISTERED, start);
+			} catch (IOException e) {
+				player.close();
+				throw e;
+			}
+			return player;
+		}
+
+		private void close() {
+			for(ProtocolClient player: new ProtocolClient[] {first, second}) {
+				if(player != null) {
+					try {
+						player.disconnect();
+					} catch (IOException e) {
+						// already closed by the server
+					}
+				}
+			}
+			first = second = null;
+		}
+
+		private void runSession(int session) throws IOException {
+			switch(session) {
+			case SESSION_LIST:
+				op = OP_LIST;
+				long start = System.nanoTime();
+				first.listRooms();
+				record(OP_LIST, start);
+				break;
+			case SESSION_GAME:
+				playGame();
+				break;
+			case SESSION_CHURN:
+				close();
+				connect();
+				break;
+			}
+		}
+
+		private void playGame() throws IOException {
+			long start;
+			if(second.getRoomId() == -1 || first.getRoomId() != second.getRoomId()) {
+				op = OP_CREATE;
+				start = System.nanoTime();
+				expect(first.createRoom("load" + number), Server.PLAYER_CREATE_ROOM_SUCCESS, start);
+
+				op = OP_JOIN;
+				start = System.nanoTime();
+				expect(second.joinRoom(first.getRoomId()), Server.PLAYER_JOIN_ROOM_SUCCESS, start);
+			}
+
+			op = OP_READY;
+			start = System.nanoTime();
+			expect(first.setReady(), Server.ROOM_PLAYER_INFO_READY, start);
+			start = System.nanoTime();
+			expect(second.setReady(), Server.ROOM_PLAYER_INFO_READY, start);
+
+			op = OP_START;
+			start = System.nanoTime();
+			expect(first.startGame(), Server.ROOM_GAME_START, start);
+
+			int resp;
+			do {
+				op = OP_SELECT;
+				start = System.nanoTime();
+				expect(first.select(Game.SELECTION_ROCK + random.nextInt(3)), Server.GAME_SELECTION_UPDATE, start);
+				start = System.nanoTime();
+				expect(second.select(Game.SELECTION_ROCK + random.nextInt(3)), Server.GAME_SELECTION_UPDATE, start);
+
+				resp = first.awaitRoundEnd();
+				if(second.awaitRoundEnd() != resp) {
+					throw new IOException("Players disagree on the end of round");
+				}
+			} while(resp == Server.GAME_ROUND_RESULT);
+
+			if(resp != Server.ROOM_GAME_END) {
+				throw new IOException("Unexpected end of game: " + resp);
+			}
+		}
+
+		/**
+		 * Records a reply, or throws if it is not the one expected
+		 */
+		private void expect(int resp, int expected, long start) throws IOException {
+			if(resp != expected) {
+				throw new IOException("Unexpected reply to " + OPCODE_NAMES[op] + ": " + resp);
+			}
+			record(op, start);
+		}
+	}
+
+	public LoadGenerator(String host, int port) {
+		this.host = host;
+		this.port = port;
+
+		pairCount = (Math.max(2, Integer.getInteger("jankenpon.load.players", 100)) + 1) / 2;
+		duration = Long.getLong("jankenpon.load.duration", 30) * 1000;
+		warmup = Long.getLong("jankenpon.load.warmup", 5) * 1000;
+		mix = parseMix(System.getProperty("jankenpon.load.mix", "list:1,game:4,churn:1"));
+		thinkTime = Long.getLong("jankenpon.load.thinkTime", 0);
+		timeout = Integer.getInteger("jankenpon.load.timeout", 5000);
+		reportInterval = Math.max(1, Long.getLong("jankenpon.load.reportInterval", 5)) * 1000;
+
+		latencies = new Latency[OPCODES.length];
+		for(int i = 0; i < latencies.length; i++) {
+			latencies[i] = new Latency();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : Client.DEFAULT_PORT;
+
+		new LoadGenerator(host, port).run();
+	}
+
+	/**
+	 * Parses the weights of the sessions
+	 * @param spec such as "list:1,game:4,churn:1"; a session left out is not run
+	 * @return the cumulated weights, in the order of {@link #SESSION_NAMES}
+	 */
+	private static int[] parseMix(String spec) {
+		int[] weights = new int[SESSION_NAMES.length];
+		for(String entry: spec.split(",")) {
+			String[] parts = entry.trim().split(":");
+			int session = Arrays.asList(SESSION_NAMES).indexOf(parts[0].trim());
+			if(session < 0 || parts.length != 2) {
+				throw new IllegalArgumentException("Unknown session in mix: " + entry);
+			}
+			weights[session] = Math.max(0, Integer.parseInt(parts[1].trim()));
+		}
+
+		for(int i = 1; i < weights.length; i++) {
+			weights[i] += weights[i - 1];
+		}
+		if(weights[weights.length - 1] == 0) {
+			throw new IllegalArgumentException("Empty mix: " + spec);
+		}
+		return weights;
+	}
+
+	private int pickSession(Random random) {
+		int pick = random.nextInt(mix[mix.length - 1]);
+		int session = 0;
+		while(pick >= mix[session]) {
+			session++;
+		}
+		return session;
+	}
+
+	private void record(int op, long start) {
+		if(measuring) {
+			latencies[op].record((System.nanoTime() - start) / 1000);
+		}
+	}
+
+	private void error(int op) {
+		if(measuring) {
+			latencies[op].error();
+		}
+	}
+
+	/**
+	 * Runs the pairs for the warmup and the measured time, then prints the report
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException {
+		System.out.println("Load: " + pairCount * 2 + " players on " + host + ":" + port
+				+ ", " + warmup / 1000 + " s warmup, " + duration / 1000 + " s measured");
+
+		running = true;
+		List<Thread> threads = new ArrayList<>();
+		for(int i = 0; i < pairCount; i++) {
+			Thread thread = new Thread(new Pair(i), "load-" + i);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+
+		Thread.sleep(warmup);
+		measuring = true;
+		long start = System.nanoTime();
+		long end = start + duration * 1000000L;
+
+		long lastCount = 0;
+		long lastTime = start;
+		long now;
+		while((now = System.nanoTime()) - end < 0) {
+			Thread.sleep(Math.min(reportInterval, (end - now) / 1000000 + 1));
+
+			now = System.nanoTime();
+			long count = getTotalCount();
+			System.out.printf("%5d s: %d requests, %.0f/s, %d errors%n", (now - start) / 1000000000L,
+					count, (count - lastCount) * 1e9 / Math.max(1, now - lastTime), getTotalErrors());
+			lastCount = count;
+			lastTime = now;
+		}
+
+		measuring = false;
+		long elapsed = System.nanoTime() - start;
+		running = false;
+		for(Thread thread: threads) {
+			thread.join(timeout);
+		}
+
+		report(elapsed);
+	}
+
+	private long getTotalCount() {
+		long total = 0;
+		for(Latency latency: latencies) {
+			total += latency.getCount();
+		}
+		return total;
+	}
+
+	private long getTotalErrors() {
+		long total = 0;
+		for(Latency latency: latencies) {
+			total += latency.getErrors();
+		}
+		return total;
+	}
+
+	/**
+	 * Prints the throughput and the latencies of every request code
+	 * @param elapsed the measured time, in nanoseconds
+	 */
+	private void report(long elapsed) {
+		double seconds = elapsed / 1e9;
+
+		System.out.println();
+		System.out.printf("%-12s %5s %9s %7s %9s %9s %9s %9s %9s%n",
+				"request", "code", "count", "errors", "req/s", "p50 us", "p90 us", "p99 us", "max us");
+		for(int i = 0; i < OPCODES.length; i++) {
+			Latency latency = latencies[i];
+			System.out.printf("%-12s %5d %9d %7d %9.0f %9d %9d %9d %9d%n",
+					OPCODE_NAMES[i], OPCODES[i], latency.getCount(), latency.getErrors(),
+					latency.getCount() / seconds, latency.percentile(0.5), latency.percentile(0.9),
+					latency.percentile(0.99), latency.getMax());
+		}
+		System.out.printf("%-12s %5s %9d %7d %9.0f%n", "total", "", getTotalCount(), getTotalErrors(),
+				getTotalCount() / seconds);
+	}
+}
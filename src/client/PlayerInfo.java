@@ -0,0 +1,53 @@
+package client;
+
+import java.nio.ByteBuffer;
+
+import util.StringUtils;
+
+/**
+ * A player of a room, as sent by the server.
+ *
+ * Record structure:
+ * 		[4 byte -- player id][2 byte -- master flag, 'M' or 'S'][32 byte -- player name]
+ * @author alvin_nt
+ *
+ */
+public class PlayerInfo {
+	private final int id;
+	private final String name;
+	private final boolean master;
+
+	public PlayerInfo(int id, String name, boolean master) {
+		this.id = id;
+		this.name = name;
+		this.master = master;
+	}
+
+	/**
+	 * Reads a player record
+	 * @param bb the buffer, positioned at the record
+	 * @return the player
+	 */
+	public static PlayerInfo read(ByteBuffer bb) {
+		int id = bb.getInt();
+		boolean master = bb.getChar() == 'M';
+		String name = StringUtils.getName(bb).trim();
+
+		return new PlayerInfo(id, name, master);
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return whether the player is the room's master
+	 */
+	public boolean isMaster() {
+		return master;
+	}
+}
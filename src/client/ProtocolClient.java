@@ -0,0 +1,403 @@
+package client;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+import server.Game;
+import server.Server;
+import util.BufferPool;
+import util.FrameDecoder;
+import util.FrameUtils;
+import util.StringUtils;
+
+/**
+ * The connection of a player to the server, without any user interface.
+ *
+ * Sends the requests of the protocol and waits for their replies, skipping
+ * the packets the server pushes meanwhile (players joining, time updates...).
+ * Used by the {@link LoadGenerator}; the {@link GameClient} only uses its
+ * framing, to read the packets on a thread of its own.
+ *
+ * The requests block until their reply has arrived. A request ignored by the
+ * server, such as starting a game before two players are ready, gets no reply;
+ * use {@link #setTimeout(int)} to give up on it.
+ * Not thread-safe, except that one thread may send while another receives.
+ * @author alvin_nt
+ *
+ */
+public class ProtocolClient {
+	private final Socket connection;
+
+	private final DataInputStream is;
+	private final DataOutputStream os;
+
+	/**
+	 * The framing used with the server, see {@link FrameUtils}.
+	 * Use -Djankenpon.protocol=legacy to skip the negotiation.
+	 */
+	private int protocolVersion = FrameUtils.VERSION_LEGACY;
+
+	private final FrameDecoder decoder = new FrameDecoder(FrameUtils.MAX_FRAME_SIZE);
+
+	/**
+	 * The request being written
+	 */
+	private final ByteBuffer out = ByteBuffer.allocate(FrameUtils.MAX_REQUEST_SIZE);
+
+	/**
+	 * The last packet received
+	 */
+	private ByteBuffer in = ByteBuffer.allocate(1024);
+
+	private int playerId;
+	private int roomId = -1;
+
+	/**
+	 * Connects to a server, then negotiates the framing
+	 * @param host the server's address
+	 * @param port the server's port
+	 * @throws IOException
+	 */
+	public ProtocolClient(String host, int port) throws IOException {
+		connection = new Socket(host, port);
+		connection.setTcpNoDelay(true);
+
+		is = new DataInputStream(connection.getInputStream());
+		os = new DataOutputStream(connection.getOutputStream());
+
+		if(!"legacy".equalsIgnoreCase(System.getProperty("jankenpon.protocol"))) {
+			negotiateProtocol();
+		}
+	}
+
+	/**
+	 * Sets how long a read waits for the server, see {@link Socket#setSoTimeout(int)}
+	 * @param millis the timeout, 0 to wait forever
+	 * @throws SocketException
+	 */
+	public void setTimeout(int millis) throws SocketException {
+		connection.setSoTimeout(millis);
+	}
+
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	public int getPlayerId() {
+		return playerId;
+	}
+
+	/**
+	 * @return the room the player has created or joined last, -1 if none or
+	 * 			once a {@link Server#ROOM_DESTROYED} packet has been received
+	 */
+	public int getRoomId() {
+		return roomId;
+	}
+
+	/**
+	 * Gets the buffer to write a request in; send it with {@link #send()}
+	 * @return the buffer, cleared
+	 */
+	public ByteBuffer packet() {
+		out.clear();
+		return out;
+	}
+
+	/**
+	 * Gets the last packet received, positioned after what has been read of it
+	 * @return the packet
+	 */
+	public ByteBuffer getBuffer() {
+		return in;
+	}
+
+	/**
+	 * Asks the server to use the compact framing.
+	 * Stays with the legacy framing if the server does not accept it.
+	 * @throws IOException
+	 */
+	private void negotiateProtocol() throws IOException {
+		packet().putInt(Server.PROTOCOL_HELLO).putInt(FrameUtils.CURRENT_VERSION);
+		send();
+
+		if(await(Server.PROTOCOL_ACCEPT) == Server.PROTOCOL_ACCEPT) {
+			protocolVersion = in.getInt();
+			decoder.setVersion(protocolVersion);
+		}
+	}
+
+	/**
+	 * Sends the request written to {@link #packet()}
+	 * @throws IOException
+	 */
+	public void send() throws IOException {
+		ByteBuffer frame = FrameUtils.encode(out, protocolVersion, BufferPool.HEAP);
+		os.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		os.flush();
+		BufferPool.HEAP.release(frame);
+
+		out.clear();
+	}
+
+	/**
+	 * Reads a packet into the buffer, positioned at its start
+	 * @return false if the server has closed the connection
+	 * @throws IOException
+	 */
+	public boolean receive() throws IOException {
+		ByteBuffer frame;
+		while((frame = decoder.nextFrame()) == null) {
+			if(decoder.readFrom(is) == -1) {
+				in.clear().limit(0);
+				return false;
+			}
+		}
+
+		if(frame.remaining() > in.capacity()) {
+			in = ByteBuffer.allocate(frame.remaining());
+		}
+		in.clear();
+		in.put(frame).flip();
+
+		// the room may be destroyed by its master, or by a player leaving it
+		if(in.getInt(0) == Server.ROOM_DESTROYED) {
+			roomId = -1;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads packets until one of the given codes arrives
+	 * @param codes the packet codes waited for
+	 * @return the code, with the buffer positioned after it; -1 if the server has closed the connection
+	 * @throws IOException
+	 */
+	public int await(int... codes) throws IOException {
+		while(receive()) {
+			int code = in.getInt();
+			for(int c: codes) {
+				if(code == c) {
+					return code;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Registers the client as a new player in the server
+	 * @param name the player's name
+	 * @return {@link Server#PLAYER_REGISTERED} with the id read, else the code received
+	 * @throws IOException
+	 */
+	public int register(String name) throws IOException {
+		packet().putInt(Server.PLAYER_NAME_SET);
+		StringUtils.putName(out, name);
+		send();
+
+		int resp = receive() ? in.getInt() : -1;
+		if(resp == Server.PLAYER_REGISTERED) {
+			playerId = in.getInt();
+		}
+		return resp;
+	}
+
+	/**
+	 * Creates a room, with this player as its master
+	 * @param name the room's name
+	 * @return {@link Server#PLAYER_CREATE_ROOM_SUCCESS} with the room id read, else the
+	 * 			code received, followed by a message
+	 * @throws IOException
+	 */
+	public int createRoom(String name) throws IOException {
+		packet().putInt(Server.PLAYER_CREATE_ROOM).putInt(playerId);
+		StringUtils.putName(out, name);
+		send();
+
+		int resp = await(Server.PLAYER_CREATE_ROOM_SUCCESS, Server.PLAYER_CREATE_ROOM_FAIL, Server.UNKNOWN_COMMAND);
+		if(resp == Server.PLAYER_CREATE_ROOM_SUCCESS) {
+			roomId = in.getInt();
+		}
+		return resp;
+	}
+
+	/**
+	 * Joins a room
+	 * @param id the room's id
+	 * @return {@link Server#PLAYER_JOIN_ROOM_SUCCESS}, else the code received, followed by a message
+	 * @throws IOException
+	 */
+	public int joinRoom(int id) throws IOException {
+		packet().putInt(Server.PLAYER_JOIN_ROOM).putInt(playerId).putInt(id);
+		send();
+
+		int resp = await(Server.PLAYER_JOIN_ROOM_SUCCESS, Server.PLAYER_JOIN_ROOM_FAIL, Server.UNKNOWN_COMMAND);
+		if(resp == Server.PLAYER_JOIN_ROOM_SUCCESS) {
+			roomId = id;
+		}
+		return resp;
+	}
+
+	/**
+	 * Destroys a room, which the player must be the master of.
+	 * A room that is already gone gets no reply, unless its {@link Server#ROOM_DESTROYED}
+	 * has not been read yet; see {@link #getRoomId()}.
+	 * @param id the room's id
+	 * @return {@link Server#ROOM_DESTROYED}, or -1 if the server has closed the connection
+	 * @throws IOException
+	 */
+	public int destroyRoom(int id) throws IOException {
+		packet().putInt(Server.PLAYER_DESTROY_ROOM).putInt(id).putInt(playerId);
+		send();
+
+		return await(Server.ROOM_DESTROYED);
+	}
+
+	/**
+	 * Asks for the whole room list; read it with {@link #nextRoomPage()}
+	 * @throws IOException
+	 */
+	public void queryRooms() throws IOException {
+		// cursor, no limit, no list version held
+		packet().putInt(Server.PLAYER_QUERY_ROOM_PAGE).putInt(0).putInt(0).putInt(0);
+		send();
+	}
+
+	/**
+	 * Reads the next page of the room list
+	 * @return the number of room records in the page, with the buffer positioned
+	 * 			at the first one; -1 at the end of the list
+	 * @throws IOException
+	 */
+	public int nextRoomPage() throws IOException {
+		if(await(Server.PLAYER_ROOM_PAGE, Server.PLAYER_ROOM_LIST_END) != Server.PLAYER_ROOM_PAGE) {
+			return -1;
+		}
+
+		in.getInt(); // version
+		in.getInt(); // total
+		in.getInt(); // next cursor
+		return in.getInt();
+	}
+
+	/**
+	 * Reads the whole room list, skipping the records
+	 * @return the number of rooms listed
+	 * @throws IOException
+	 */
+	public int listRooms() throws IOException {
+		queryRooms();
+
+		int total = 0;
+		int count;
+		while((count = nextRoomPage()) >= 0) {
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * Sets that the player is ready to play in its room
+	 * @return {@link Server#ROOM_PLAYER_INFO_READY} once the room has taken it,
+	 * 			{@link Server#ROOM_DESTROYED} or -1 otherwise
+	 * @throws IOException
+	 */
+	public int setReady() throws IOException {
+		packet().putInt(Server.ROOM_PLAYER_READY).putInt(playerId);
+		send();
+
+		int resp;
+		while((resp = await(Server.ROOM_PLAYER_INFO_READY, Server.ROOM_DESTROYED)) == Server.ROOM_PLAYER_INFO_READY) {
+			// the other player may get ready first
+			if(in.getInt() == playerId) {
+				break;
+			}
+		}
+		return resp;
+	}
+
+	/**
+	 * Asks the server to start the game of the player's room
+	 * @return {@link Server#ROOM_GAME_START} once the game has started,
+	 * 			{@link Server#ROOM_DESTROYED} or -1 otherwise
+	 * @throws IOException
+	 */
+	public int startGame() throws IOException {
+		packet().putInt(Server.ROOM_GAME_START).putInt(playerId).putInt(roomId);
+		send();
+
+		return await(Server.ROOM_GAME_START, Server.ROOM_DESTROYED);
+	}
+
+	/**
+	 * Sends the player's selection for the current round
+	 * @param selection one of the selections of {@link Game}
+	 * @return {@link Server#GAME_SELECTION_UPDATE} once the game has taken it,
+	 * 			{@link Server#GAME_SELECTION_REJECTED} if it came too late or the player
+	 * 			has already selected in this round,
+	 * 			{@link Server#ROOM_GAME_END}, {@link Server#ROOM_GAME_CANCEL},
+	 * 			{@link Server#ROOM_DESTROYED} or -1 if the game is over
+	 * @throws IOException
+	 */
+	public int select(int selection) throws IOException {
+		packet().putInt(Server.GAME_UPDATE_SELECTION).putInt(playerId).putInt(selection);
+		send();
+
+		int resp;
+		while((resp = await(Server.GAME_SELECTION_UPDATE, Server.GAME_SELECTION_REJECTED,
+				Server.ROOM_GAME_END, Server.ROOM_GAME_CANCEL, Server.ROOM_DESTROYED)) == Server.GAME_SELECTION_UPDATE) {
+			// the other player may select first
+			if(in.getInt() == playerId) {
+				break;
+			}
+		}
+		return resp;
+	}
+
+	/**
+	 * Waits for the current round to end
+	 * @return {@link Server#GAME_ROUND_RESULT} if the match goes on with another round,
+	 * 			{@link Server#ROOM_GAME_END}, {@link Server#ROOM_GAME_CANCEL},
+	 * 			{@link Server#ROOM_DESTROYED} or -1 if it is over
+	 * @throws IOException
+	 */
+	public int awaitRoundEnd() throws IOException {
+		int resp;
+		while((resp = await(Server.GAME_ROUND_RESULT, Server.ROOM_GAME_END,
+				Server.ROOM_GAME_CANCEL, Server.ROOM_DESTROYED)) == Server.GAME_ROUND_RESULT) {
+			in.getInt(); // room id
+			in.getInt(); // round
+			in.position(in.position() + 20); // selections, winner, wins
+			if(in.getInt() != 0) {
+				break;
+			}
+			// the last round ended the match: wait for the end of the game
+		}
+		return resp;
+	}
+
+	/**
+	 * Tells the server the player leaves, then closes the connection
+	 * @throws IOException
+	 */
+	public void disconnect() throws IOException {
+		try {
+			packet().putInt(Server.PLAYER_DISCONNECT);
+			send();
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Closes the connection, without telling the server
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		os.close();
+		is.close();
+		connection.close();
+	}
+}
@@ -0,0 +1,111 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The reply to a request sent by a {@link GameClient}, completed by the client's
+ * reader thread once the server has answered.
+ *
+ * Wait for it with {@link #get()}, or add a {@link Callback} to be called with
+ * the result. A request that failed, such as joining a full room, throws an
+ * {@link java.util.concurrent.ExecutionException} holding an
+ * {@link java.io.IOException} with the server's message. A request ignored by
+ * the server gets no reply; use {@link #get(long, java.util.concurrent.TimeUnit)},
+ * then {@link #cancel(boolean)} to stop waiting.
+ * @author alvin_nt
+ *
+ * @param <T> the result of the request
+ */
+public class Reply<T> extends FutureTask<T> {
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	/**
+	 * Called once a reply is done
+	 * @param <T> the result of the request
+	 */
+	public interface Callback<T> {
+		void completed(T result);
+
+		/**
+		 * @param cause why the request failed, or a {@link CancellationException}
+		 */
+		void failed(Throwable cause);
+	}
+
+	/**
+	 * The callbacks added before the reply was done, guarded by this reply
+	 */
+	private List<Callback<? super T>> callbacks;
+
+	Reply() {
+		// never run, completed by set() instead
+		super(NOTHING, null);
+	}
+
+	void complete(T result) {
+		set(result);
+	}
+
+	void fail(Throwable cause) {
+		setException(cause);
+	}
+
+	/**
+	 * Adds a callback. It is called on the client's reader thread, or at
+	 * once if the reply is already done; it must not block.
+	 * @param callback the callback
+	 */
+	public void addCallback(Callback<? super T> callback) {
+		synchronized(this) {
+			if(!isDone()) {
+				if(callbacks == null) {
+					callbacks = new ArrayList<>(1);
+				}
+				callbacks.add(callback);
+				return;
+			}
+		}
+		notify(callback);
+	}
+
+	@Override
+	protected void done() {
+		List<Callback<? super T>> done;
+		synchronized(this) {
+			done = callbacks;
+			callbacks = null;
+		}
+
+		if(done != null) {
+			for(Callback<? super T> callback: done) {
+				notify(callback);
+			}
+		}
+	}
+
+	private void notify(Callback<? super T> callback) {
+		T result;
+		try {
+			result = get();
+		} catch (ExecutionException e) {
+			callback.failed(e.getCause());
+			return;
+		} catch (CancellationException e) {
+			callback.failed(e);
+			return;
+		} catch (InterruptedException e) {
+			// done, so get() does not wait
+			Thread.currentThread().interrupt();
+			return;
+		}
+		callback.completed(result);
+	}
+}
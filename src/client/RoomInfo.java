@@ -0,0 +1,68 @@
+package client;
+
+import java.nio.ByteBuffer;
+
+import util.StringUtils;
+
+/**
+ * A room of the room list, as sent by the server.
+ *
+ * Record structure:
+ * 		[4 byte -- room id][32 byte -- room name][4 byte -- no. of connected players]
+ * 		[4 byte -- room master's id][4 byte -- room state]
+ * @author alvin_nt
+ *
+ */
+public class RoomInfo {
+	private final int id;
+	private final String name;
+	private final int connectedPlayers;
+	private final int masterId;
+	private final int state;
+
+	public RoomInfo(int id, String name, int connectedPlayers, int masterId, int state) {
+		this.id = id;
+		this.name = name;
+		this.connectedPlayers = connectedPlayers;
+		this.masterId = masterId;
+		this.state = state;
+	}
+
+	/**
+	 * Reads a room record
+	 * @param bb the buffer, positioned at the record
+	 * @return the room
+	 */
+	public static RoomInfo read(ByteBuffer bb) {
+		int id = bb.getInt();
+		String name = StringUtils.getName(bb).trim();
+		int connectedPlayers = bb.getInt();
+		int masterId = bb.getInt();
+		int state = bb.getInt();
+
+		return new RoomInfo(id, name, connectedPlayers, masterId, state);
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getConnectedPlayers() {
+		return connectedPlayers;
+	}
+
+	public int getMasterId() {
+		return masterId;
+	}
+
+	/**
+	 * @return one of the states of {@link server.GameRoom}
+	 */
+	public int getState() {
+		return state;
+	}
+}
@@ -0,0 +1,349 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.GameRoom;
+import server.Player;
+import server.RoomDirectory;
+import server.Server;
+
+/**
+ * A test harness, not part of the game: runs a server in this process, has
+ * many players create, join and destroy rooms at once through the real
+ * protocol, then checks the server's registries and rooms are consistent.
+ * Usage:
+ * 		java client.ServerStress
+ * The server listens on its usual port, so no other server may be running.
+ *
+ * Every thread drives one {@link ProtocolClient}, and at random:
+ * 		- creates a room
+ * 		- joins a room picked from the room list
+ * 		- destroys the room it has created
+ * 		- reads the room list
+ * 		- leaves the server, then connects and registers again
+ * A reply that is neither the success nor the failure of the request, or
+ * no reply in time, counts an error and the thread connects again.
+ *
+ * Once the threads are idle and the server has settled, the checks:
+ * 		- every room is found by its id, is not destroyed, and its master is
+ * 			a connected player seated in it
+ * 		- a room counts as many players as are seated in it
+ * 		- every player is found by its id, and so is its room, if any
+ * 		- the registries iterate as many entries as their size, and there
+ * 			are as many players as connected clients
+ * 		- the room list holds exactly the listed rooms
+ * Then every player leaves, and the server must be left with no player and no room.
+ * The first errors are printed; the exit status is 1 if there is any.
+ *
+ * The run is set with system properties:
+ * 		-Djankenpon.stress.clients=n		number of players (16)
+ * 		-Djankenpon.stress.duration=seconds	time to run (10)
+ * 		-Djankenpon.stress.timeout=millis	time to wait for a reply (5000)
+ * -Djankenpon.transport selects the server's transport, as for the server.
+ * @author alvin_nt
+ *
+ */
+public class ServerStress {
+	private static final String HOST = "localhost";
+	private static final int PORT = 8094;
+
+	private static final int MAX_ERRORS_PRINTED = 10;
+
+	/**
+	 * Time left to the server to finish the requests and disconnections, in milliseconds
+	 */
+	private static final long SETTLE_TIME = 1000;
+
+	private final int timeout;
+
+	/**
+	 * The client of every thread, once the run is over; null if it has left
+	 */
+	private final ProtocolClient[] clients;
+
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	// the outcomes of the requests
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong createFailed = new AtomicLong();
+	private final AtomicLong joined = new AtomicLong();
+	private final AtomicLong joinFailed = new AtomicLong();
+	private final AtomicLong destroyed = new AtomicLong();
+	private final AtomicLong reconnected = new AtomicLong();
+
+	private volatile boolean running = true;
+
+	public ServerStress(int clientCount, int timeout) {
+		this.timeout = timeout;
+		clients = new ProtocolClient[clientCount];
+	}
+
+	private void error(String message) {
+		if(errors.incrementAndGet() <= MAX_ERRORS_PRINTED) {
+			System.out.println("ERROR: " + message);
+		}
+	}
+
+	private ProtocolClient connect() throws IOException {
+		ProtocolClient client = new ProtocolClient(HOST, PORT);
+		client.setTimeout(timeout);
+
+		int resp = client.register("stress");
+		if(resp != Server.PLAYER_REGISTERED) {
+			client.close();
+			throw new IOException("register: code " + resp);
+		}
+		return client;
+	}
+
+	/**
+	 * Runs random requests until the end of the run
+	 * @param index the thread's slot in {@link #clients}
+	 */
+	private void work(int index) {
+		Random random = ThreadLocalRandom.current();
+		ProtocolClient client = null;
+
+		// the room created by this player, -1 if none
+		int ownRoom = -1;
+		long done = 0;
+
+		while(running) {
+			int op = -1;
+			try {
+				if(client == null) {
+					client = connect();
+					ownRoom = -1;
+				}
+
+				op = random.nextInt(10);
+				if(op < 3) {
+					int resp = client.createRoom("stress");
+					if(resp == Server.PLAYER_CREATE_ROOM_SUCCESS) {
+						ownRoom = client.getRoomId();
+						created.incrementAndGet();
+					} else if(resp == Server.PLAYER_CREATE_ROOM_FAIL) {
+						createFailed.incrementAndGet();
+					} else {
+						throw new IOException("create room: code " + resp);
+					}
+				} else if(op < 6) {
+					join(client, random);
+				} else if(op < 8) {
+					// the room is also destroyed once a player leaves it
+					if(ownRoom != -1 && client.getRoomId() != ownRoom) {
+						ownRoom = -1;
+					}
+					if(ownRoom != -1) {
+						int resp = client.destroyRoom(ownRoom);
+						if(resp != Server.ROOM_DESTROYED) {
+							throw new IOException("destroy room " + ownRoom + ": code " + resp);
+						}
+						ownRoom = -1;
+						destroyed.incrementAndGet();
+					}
+				} else if(op < 9) {
+					client.listRooms();
+				} else {
+					client.disconnect();
+					client = null;
+					reconnected.incrementAndGet();
+				}
+				done++;
+			} catch (IOException e) {
+				error("player " + (client != null ? client.getPlayerId() : -1) + ", op " + op + ": " + e);
+				if(client != null) {
+					try {
+						client.close();
+					} catch (IOException e1) {
+						// already closed
+					}
+					client = null;
+				}
+			}
+		}
+
+		operations.addAndGet(done);
+		clients[index] = client;
+	}
+
+	/**
+	 * Joins a room picked at random from the room list
+	 */
+	private void join(ProtocolClient client, Random random) throws IOException {
+		List<Integer> ids = new ArrayList<>();
+		client.queryRooms();
+
+		int count;
+		while((count = client.nextRoomPage()) >= 0) {
+			ByteBuffer bb = client.getBuffer();
+			for(int i = 0; i < count; i++) {
+				ids.add(bb.getInt(bb.position() + i * GameRoom.INFO_SIZE));
+			}
+		}
+		if(ids.isEmpty()) {
+			return;
+		}
+
+		int id = ids.get(random.nextInt(ids.size()));
+		int resp = client.joinRoom(id);
+		if(resp == Server.PLAYER_JOIN_ROOM_SUCCESS) {
+			joined.incrementAndGet();
+		} else if(resp == Server.PLAYER_JOIN_ROOM_FAIL) {
+			joinFailed.incrementAndGet();
+		} else {
+			throw new IOException("join room " + id + ": code " + resp);
+		}
+	}
+
+	/**
+	 * Checks the server's rooms and players, once the threads are done
+	 * @param expectedPlayers the number of players still connected
+	 */
+	private void check(int expectedPlayers) {
+		Server server = Server.getInstance();
+
+		int roomCount = 0;
+		int listed = 0;
+		for(GameRoom room: server.rooms) {
+			roomCount++;
+			int id = room.getId();
+
+			if(server.rooms.get(id) != room) {
+				error("room " + id + " not found by its id");
+			}
+			if(room.isDestroyed()) {
+				error("room " + id + " destroyed but still registered");
+			}
+
+			Player master = server.players.get(room.getMasterId());
+			if(master == null || !master.isConnected() || master.getConnectedRoom() != id) {
+				error("room " + id + ": master " + room.getMasterId() + " not seated in it");
+			}
+
+			int seated = 0;
+			for(Player p: server.players) {
+				if(p.getConnectedRoom() == id) {
+					seated++;
+				}
+			}
+			if(seated != room.getPlayerCount()) {
+				error("room " + id + ": " + seated + " players seated, " + room.getPlayerCount() + " counted");
+			}
+
+			if(!room.isQuickMatch()) {
+				listed++;
+			}
+		}
+		if(roomCount != server.rooms.size()) {
+			error(roomCount + " rooms iterated, size " + server.rooms.size());
+		}
+
+		int playerCount = 0;
+		for(Player p: server.players) {
+			playerCount++;
+
+			if(server.players.get(p.getId()) != p) {
+				error("player " + p.getId() + " not found by its id");
+			}
+			if(!p.isConnected()) {
+				error("player " + p.getId() + " disconnected but still registered");
+			}
+			if(p.getConnectedRoom() != Player.NO_ROOM && server.rooms.get(p.getConnectedRoom()) == null) {
+				error("player " + p.getId() + " seated in room " + p.getConnectedRoom() + ", which is gone");
+			}
+		}
+		if(playerCount != server.players.size()) {
+			error(playerCount + " players iterated, size " + server.players.size());
+		}
+		if(playerCount != expectedPlayers) {
+			error(playerCount + " players, expected " + expectedPlayers);
+		}
+
+		RoomDirectory.Snapshot snapshot = server.directory.acquire();
+		try {
+			if(snapshot.getCount() != listed) {
+				error(snapshot.getCount() + " rooms in the list, expected " + listed);
+			}
+
+			ByteBuffer record = ByteBuffer.allocate(GameRoom.INFO_SIZE);
+			for(int i = 0; i < snapshot.getCount(); i++) {
+				record.clear();
+				snapshot.writeRecord(record, i);
+				if(server.rooms.get(record.getInt(0)) == null) {
+					error("room " + record.getInt(0) + " listed, but not registered");
+				}
+			}
+		} finally {
+			snapshot.release();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int clientCount = Integer.getInteger("jankenpon.stress.clients", 16);
+		int duration = Integer.getInteger("jankenpon.stress.duration", 10);
+		int timeout = Integer.getInteger("jankenpon.stress.timeout", 5000);
+
+		Thread server = new Thread(Server.getInstance(), "server");
+		server.setDaemon(true);
+		server.start();
+
+		System.out.println("Server stress: " + clientCount + " players, " + duration + " s");
+
+		final ServerStress stress = new ServerStress(clientCount, timeout);
+		Thread[] threads = new Thread[clientCount];
+		for(int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					stress.work(index);
+				}
+			}, "stress-" + i);
+			threads[i].start();
+		}
+
+		Thread.sleep(duration * 1000L);
+		stress.running = false;
+		for(Thread t: threads) {
+			t.join();
+		}
+
+		Thread.sleep(SETTLE_TIME);
+		int connected = 0;
+		for(ProtocolClient client: stress.clients) {
+			if(client != null) {
+				connected++;
+			}
+		}
+		stress.check(connected);
+
+		// everybody leaves: nothing may be left behind
+		for(ProtocolClient client: stress.clients) {
+			if(client != null) {
+				try {
+					client.disconnect();
+				} catch (IOException e) {
+					stress.error("disconnect: " + e);
+				}
+			}
+		}
+		Thread.sleep(SETTLE_TIME);
+		stress.check(0);
+		if(Server.getInstance().rooms.size() != 0) {
+			stress.error(Server.getInstance().rooms.size() + " rooms left");
+		}
+
+		System.out.println(stress.operations.get() + " operations: "
+				+ stress.created.get() + " rooms created, " + stress.createFailed.get() + " refused, "
+				+ stress.joined.get() + " joined, " + stress.joinFailed.get() + " refused, "
+				+ stress.destroyed.get() + " destroyed, " + stress.reconnected.get() + " reconnections; "
+				+ stress.errors.get() + " errors");
+		System.exit(stress.errors.get() > 0 ? 1 : 0);
+	}
+}
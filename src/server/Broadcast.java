@@ -0,0 +1,72 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+import util.FrameUtils;
+import util.SharedFrame;
+
+/**
+ * Sends the same packet to many players.
+ * The packet is encoded at most once per framing version, and the encoded
+ * frame is shared by every recipient's {@link Connection}.
+ *
+ * Usage:
+ * 		Broadcast broadcast = new Broadcast(bb);
+ * 		for(Player p: players) {
+ * 			broadcast.send(p);
+ * 		}
+ * 		broadcast.release();
+ * @author alvin_nt
+ *
+ */
+public class Broadcast {
+	private ByteBuffer message;
+
+	private SharedFrame[] frames;
+
+	/**
+	 * @param message the packet, written from index 0 up to its position.
+	 * 			It must not be changed until {@link #release()} has been called.
+	 */
+	public Broadcast(ByteBuffer message) {
+		this.message = message;
+
+		frames = new SharedFrame[FrameUtils.CURRENT_VERSION + 1];
+	}
+
+	/**
+	 * Queues the packet to a player
+	 * @param player the recipient
+	 */
+	public void send(Player player) {
+		player.getConnection().write(getFrame(player));
+	}
+
+	/**
+	 * Gets the packet encoded for a player, without queueing it
+	 * @param player the recipient
+	 * @return the frame, valid until {@link #release()}; retain it to keep it longer
+	 */
+	public SharedFrame getFrame(Player player) {
+		int version = player.getProtocolVersion();
+
+		if(frames[version] == null) {
+			frames[version] = SharedFrame.encode(message, version, player.getConnection().getBufferPool());
+		}
+		return frames[version];
+	}
+
+	/**
+	 * Drops the broadcast's references to the encoded frames.
+	 * The frames are freed once every recipient has written them.
+	 */
+	public void release() {
+		for(int i = 0; i < frames.length; i++) {
+			if(frames[i] != null) {
+				frames[i].release();
+				frames[i] = null;
+			}
+		}
+		message = null;
+	}
+}
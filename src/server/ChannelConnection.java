@@ -0,0 +1,265 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+import util.BufferPool;
+import util.FrameDecoder;
+import util.SharedFrame;
+
+/**
+ * Non-blocking {@link Connection}, backed by a {@link SocketChannel} that is
+ * registered to an {@link EventLoop}.
+ *
+ * Packets are read by the event loop and dispatched to
+ * {@link Player#handleCommand(ByteBuffer)}. Writes are attempted directly;
+ * whatever the socket does not accept is queued and written by the event loop
+ * once the channel becomes writable, so a slow client never blocks the writer.
+ *
+ * The channel may be moved to another loop, see {@link #moveTo(Executor)}.
+ * @author alvin_nt
+ *
+ */
+public class ChannelConnection extends Connection {
+	private SocketChannel channel;
+	private SelectionKey key;
+	private EventLoop loop;
+
+	/**
+	 * Data that could not be written yet, and the frames they belong to
+	 */
+	private Deque<ByteBuffer> pendingWrites;
+	private Deque<SharedFrame> pendingFrames;
+
+	/**
+	 * Asks the loop owning the channel to wait for it to be writable. The
+	 * channel may have moved since the task was posted: the task then follows
+	 * it, so that the key is only changed by the thread of its own selector.
+	 */
+	private Runnable enableWrite = new Runnable() {
+		@Override
+		public void run() {
+			EventLoop owner;
+			synchronized(ChannelConnection.this) {
+				owner = loop;
+				if(owner.inEventLoop()) {
+					// not registered yet: the registration asks for the pending writes
+					if(key != null && key.isValid()) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					}
+					return;
+				}
+			}
+			owner.execute(this);
+		}
+	};
+
+	private Runnable disconnect = new Runnable() {
+		@Override
+		public void run() {
+			player.disconnect();
+		}
+	};
+
+	public ChannelConnection(SocketChannel channel, EventLoop loop, Player player) {
+		super(player);
+		this.channel = channel;
+		this.loop = loop;
+
+		pendingWrites = new ArrayDeque<>();
+		pendingFrames = new ArrayDeque<>();
+	}
+
+	synchronized void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Moves the channel to the loop of a shard, e.g. of the room the player has
+	 * joined. The channel is taken off its current loop by that loop's thread,
+	 * between two reads, then registered to the new loop.
+	 * @param shard the shard, ignored unless it is an {@link EventLoop}
+	 */
+	@Override
+	public void moveTo(Executor shard) {
+		if(!(shard instanceof EventLoop)) {
+			return;
+		}
+		final EventLoop target = (EventLoop) shard;
+
+		getLoop().execute(new Runnable() {
+			@Override
+			public void run() {
+				move(target, this);
+			}
+		});
+	}
+
+	private synchronized EventLoop getLoop() {
+		return loop;
+	}
+
+	private void move(EventLoop target, Runnable task) {
+		EventLoop current;
+		synchronized(this) {
+			current = loop;
+			if(current == target || !channel.isOpen()) {
+				return;
+			}
+
+			if(current.inEventLoop() && key != null) {
+				key.cancel();
+				key = null;
+				loop = target;
+
+				// still holding the lock, so the channel is registered before any later move
+				target.adopt(this);
+				return;
+			}
+		}
+
+		// moved meanwhile, or not registered yet: retry from the loop owning the channel
+		current.execute(task);
+	}
+
+	/**
+	 * Registers the channel to the selector of its new loop.
+	 * Called by the loop's thread.
+	 * @throws ClosedChannelException
+	 */
+	synchronized void register(Selector selector) throws ClosedChannelException {
+		if(!channel.isOpen()) {
+			return;
+		}
+
+		int ops = SelectionKey.OP_READ;
+		if(!pendingWrites.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		key = channel.register(selector, ops, this);
+	}
+
+	/**
+	 * Called by the {@link EventLoop} when the channel is readable.
+	 * Every complete packet is handed to the player.
+	 * @throws IOException
+	 */
+	void read() throws IOException {
+		FrameDecoder decoder = player.getDecoder();
+
+		// a single read per event, so that a busy client does not starve the loop's other work
+		if(decoder.readFrom(channel) == -1) {
+			player.disconnect();
+			return;
+		}
+
+		ByteBuffer frame;
+		while(channel.isOpen() && (frame = decoder.nextFrame()) != null) {
+			player.handleCommand(frame);
+		}
+	}
+
+	@Override
+	public synchronized void write(SharedFrame frame) {
+		if(!channel.isOpen()) {
+			return;
+		}
+
+		ByteBuffer view = frame.view();
+
+		if(pendingWrites.isEmpty()) {
+			try {
+				channel.write(view);
+			} catch (IOException e) {
+				loop.execute(disconnect);
+				return;
+			}
+		}
+
+		if(view.hasRemaining()) {
+			if(!offer(view.remaining())) {
+				return;
+			}
+
+			boolean wasEmpty = pendingWrites.isEmpty();
+			pendingWrites.addLast(view);
+			pendingFrames.addLast(frame.retain());
+
+			if(wasEmpty) {
+				loop.execute(enableWrite);
+			}
+		}
+	}
+
+	/**
+	 * Called by the {@link EventLoop} when the channel is writable.
+	 * Writes the queued frames, then takes more from the paced sources.
+	 * @throws IOException
+	 */
+	void flush() throws IOException {
+		writePending();
+		pump();
+	}
+
+	private synchronized void writePending() throws IOException {
+		while(!pendingWrites.isEmpty()) {
+			ByteBuffer bb = pendingWrites.peekFirst();
+			int n = channel.write(bb);
+
+			if(bb.hasRemaining()) {
+				written(n, 0);
+				return;
+			}
+			written(n, 1);
+			pendingWrites.removeFirst();
+			pendingFrames.removeFirst().release();
+		}
+
+		if(key != null) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
+
+	@Override
+	protected void evict() {
+		getLoop().execute(disconnect);
+	}
+
+	@Override
+	public BufferPool getBufferPool() {
+		return BufferPool.DIRECT;
+	}
+
+	private synchronized void closeChannel() throws IOException {
+		if(key != null) {
+			key.cancel();
+		}
+		channel.close();
+
+		SharedFrame frame;
+		while((frame = pendingFrames.pollFirst()) != null) {
+			written(pendingWrites.pollFirst().remaining(), 1);
+			frame.release();
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		closeChannel();
+		pump();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return channel.socket().getRemoteSocketAddress();
+	}
+}
@@ -0,0 +1,269 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+import util.BufferPool;
+import util.SharedFrame;
+
+/**
+ * The transport used by a {@link Player} to talk with its client.
+ * Implemented by {@link StreamConnection} for the blocking transport and by
+ * {@link ChannelConnection} for the NIO transport.
+ *
+ * Every connection has a bounded queue of frames waiting to be written.
+ * Once the queued bytes go above the high watermark the client is considered
+ * lagging, until the queue drains below the low watermark. A lagging client is
+ * either disconnected or has its new frames dropped, see {@link #POLICY_DISCONNECT}
+ * and {@link #POLICY_DROP}. The limits are set with
+ * -Djankenpon.writeHighWatermark=bytes, -Djankenpon.writeLowWatermark=bytes and
+ * -Djankenpon.slowConsumerPolicy=disconnect|drop
+ *
+ * Long replies, such as the room list, are not queued at once but written
+ * from a {@link FrameSource} as the queue drains below the low watermark,
+ * see {@link #writePaced(FrameSource)}.
+ * @author alvin_nt
+ *
+ */
+public abstract class Connection {
+	// slow consumer policies
+	public static final int POLICY_DISCONNECT = 0;
+	public static final int POLICY_DROP = 1;
+	
+	private static final int HIGH_WATERMARK = Integer.getInteger("jankenpon.writeHighWatermark", 256 * 1024);
+	private static final int LOW_WATERMARK = Integer.getInteger("jankenpon.writeLowWatermark", 64 * 1024);
+	
+	private static final int POLICY = "drop".equalsIgnoreCase(System.getProperty("jankenpon.slowConsumerPolicy")) ?
+			POLICY_DROP : POLICY_DISCONNECT;
+	
+	protected Player player;
+	
+	/**
+	 * Bytes and frames waiting to be written.
+	 * Only changed while holding the lock of the subclass' queue.
+	 */
+	private volatile int queuedBytes;
+	private volatile int queuedFrames;
+	
+	private volatile boolean lagging;
+	
+	private volatile long droppedFrames;
+	
+	/**
+	 * Sources being written, in order
+	 */
+	private final Deque<FrameSource> sources = new ArrayDeque<>();
+	
+	/**
+	 * Whether a thread is writing the sources, and whether it must check
+	 * the queue again before it stops. Guarded by the sources.
+	 */
+	private boolean pumping;
+	private boolean pumpAgain;
+	
+	/**
+	 * Frames made on demand, see {@link Connection#writePaced(FrameSource)}
+	 */
+	public interface FrameSource {
+		/**
+		 * Gets the next frame. The caller releases it once it has been queued.
+		 * @return the frame, or null at the end
+		 */
+		SharedFrame next();
+		
+		/**
+		 * Called once, after the last frame or when the connection is closed
+		 */
+		void close();
+	}
+	
+	protected Connection(Player player) {
+		this.player = player;
+	}
+	
+	public Player getPlayer() {
+		return player;
+	}
+	
+	/**
+	 * Queues a frame to the client. The frame is written by the transport,
+	 * so the caller is never blocked by a slow client.
+	 * The connection holds its own reference to the frame until it has been written.
+	 * If the write fails, the transport closes the connection and disconnects the player.
+	 * @param frame the frame
+	 */
+	public abstract void write(SharedFrame frame);
+
+	/**
+	 * Writes the frames of a source, as the queue drains: a frame is only taken
+	 * from the source while the queued bytes are below the low watermark.
+	 * The sources are written one after the other; other frames may be
+	 * written in between.
+	 * The source is closed at its end, or once the connection is closed.
+	 * @param source the source
+	 */
+	public void writePaced(FrameSource source) {
+		synchronized(sources) {
+			sources.addLast(source);
+		}
+		pump();
+	}
+	
+	/**
+	 * Takes frames from the sources while the queue is below the low watermark.
+	 * Called by the transports once queued data has been written, and once closed.
+	 */
+	protected void pump() {
+		synchronized(sources) {
+			if(pumping) {
+				pumpAgain = true;
+				return;
+			}
+			pumping = true;
+		}
+		
+		try {
+			while(true) {
+				boolean open = isOpen();
+				FrameSource source;
+				synchronized(sources) {
+					source = sources.peekFirst();
+					if(source == null || open && queuedBytes > LOW_WATERMARK) {
+						if(!pumpAgain) {
+							pumping = false;
+							return;
+						}
+						pumpAgain = false;
+						continue;
+					}
+				}
+				
+				SharedFrame frame = open ? source.next() : null;
+				if(frame == null) {
+					synchronized(sources) {
+						sources.pollFirst();
+					}
+					source.close();
+					continue;
+				}
+				
+				try {
+					write(frame);
+				} finally {
+					frame.release();
+				}
+			}
+		} catch (RuntimeException e) {
+			synchronized(sources) {
+				pumping = false;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Accounts a frame that is about to be queued.
+	 * Must be called while holding the queue's lock.
+	 * @param size the number of bytes to be queued
+	 * @return false if the frame must not be queued
+	 */
+	protected boolean offer(int size) {
+		if(lagging) {
+			droppedFrames++;
+			return false;
+		}
+		
+		queuedBytes += size;
+		queuedFrames++;
+		
+		if(queuedBytes > HIGH_WATERMARK) {
+			lagging = true;
+			System.out.println("Player " + player.getId() + " is lagging: " + queuedBytes + " bytes queued");
+			
+			if(POLICY == POLICY_DISCONNECT) {
+				evict();
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Accounts queued data that has been written or discarded.
+	 * Must be called while holding the queue's lock.
+	 * @param bytes the number of queued bytes written
+	 * @param frames the number of queued frames that are done
+	 */
+	protected void written(int bytes, int frames) {
+		queuedBytes -= bytes;
+		queuedFrames -= frames;
+		
+		if(lagging && queuedBytes <= LOW_WATERMARK && POLICY == POLICY_DROP) {
+			lagging = false;
+			System.out.println("Player " + player.getId() + " caught up, " + droppedFrames + " frames dropped so far");
+		}
+	}
+	
+	/**
+	 * Disconnects a lagging client, without blocking the caller
+	 */
+	protected abstract void evict();
+	
+	/**
+	 * Moves the connection's I/O to a shard of the server, e.g. the shard of
+	 * the room the player has joined. Transports that cannot move do nothing.
+	 * @param shard the shard, see {@link Server#getShard(int)}
+	 */
+	public void moveTo(Executor shard) {
+	}
+	
+	/**
+	 * @return the number of bytes waiting to be written
+	 */
+	public int getQueuedBytes() {
+		return queuedBytes;
+	}
+	
+	/**
+	 * @return the number of frames waiting to be written
+	 */
+	public int getQueuedFrames() {
+		return queuedFrames;
+	}
+	
+	/**
+	 * @return true if the client is above the high watermark
+	 */
+	public boolean isLagging() {
+		return lagging;
+	}
+	
+	/**
+	 * @return the number of frames dropped because the client was lagging
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+	
+	/**
+	 * @return the pool the frames written to this connection are taken from
+	 */
+	public abstract BufferPool getBufferPool();
+
+	/**
+	 * Closes the connection
+	 * @throws IOException
+	 */
+	public abstract void close() throws IOException;
+
+	/**
+	 * @return true if the connection has not been closed yet
+	 */
+	public abstract boolean isOpen();
+
+	/**
+	 * @return the address of the client
+	 */
+	public abstract SocketAddress getRemoteAddress();
+}
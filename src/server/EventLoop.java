@@ -0,0 +1,173 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A single thread that serves many {@link ChannelConnection}s through a
+ * {@link Selector}. Used by the {@link Server} when running with the NIO transport.
+ *
+ * Every loop is also a shard of the server: the rooms pinned to it run their
+ * {@link Mailbox} on the loop's thread, and the channels of their players are
+ * moved to the loop, so a room and its players are served by one thread.
+ * @author alvin_nt
+ *
+ */
+public class EventLoop implements Runnable, Executor {
+	/**
+	 * Maximum number of tasks run per iteration, so that busy tasks do not
+	 * starve the channels
+	 */
+	private static final int MAX_TASKS = 1024;
+
+	private Selector selector;
+
+	/**
+	 * Tasks submitted from other threads, executed by the loop's thread
+	 */
+	private Queue<Runnable> tasks;
+
+	private Thread thread;
+
+	private volatile boolean running;
+
+	public EventLoop(String name) throws IOException {
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<>();
+
+		thread = new Thread(this, name);
+	}
+
+	public void start() {
+		running = true;
+		thread.start();
+	}
+
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * @return true if called from the loop's thread
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs a task in the loop's thread
+	 * @param task the task
+	 */
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+
+		if(Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Registers a freshly accepted channel to this loop
+	 * @param channel the client channel
+	 * @param player the player that owns the channel
+	 * @throws IOException
+	 */
+	public void register(final SocketChannel channel, final Player player) throws IOException {
+		channel.configureBlocking(false);
+
+		final ChannelConnection connection = new ChannelConnection(channel, this, player);
+		player.connection(connection);
+
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+					connection.setKey(key);
+				} catch (ClosedChannelException e) {
+					player.disconnect();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Registers a channel moved from another loop, see {@link ChannelConnection#moveTo(Executor)}
+	 * @param connection the connection
+	 */
+	void adopt(final ChannelConnection connection) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connection.register(selector);
+				} catch (ClosedChannelException e) {
+					connection.getPlayer().disconnect();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		System.out.println(thread.getName() + " started.");
+		while(running) {
+			try {
+				if(tasks.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+
+			runTasks();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while(it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				ChannelConnection connection = (ChannelConnection) key.attachment();
+				try {
+					if(key.isValid() && key.isWritable()) {
+						connection.flush();
+					}
+					if(key.isValid() && key.isReadable()) {
+						connection.read();
+					}
+				} catch (IOException | CancelledKeyException e) {
+					connection.getPlayer().disconnect();
+				} catch (RuntimeException e) {
+					// a bug handling one client must not stop the other clients of the loop
+					e.printStackTrace();
+					connection.getPlayer().disconnect();
+				}
+			}
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		System.out.println(thread.getName() + " end.");
+	}
+
+	private void runTasks() {
+		Runnable task;
+		for(int i = 0; i < MAX_TASKS && (task = tasks.poll()) != null; i++) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -2,10 +2,40 @@ package server;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import util.HashedWheelTimer;
 
 /**
  * Class that represents the Jankenpon game
+ * 
+ * The game is a state machine, driven by events instead of a waiting thread:
+ * 		READY --start()--> START --time out / both players selected--> FINISH
+ * 		READY, START --a player leaves--> CANCELED
+ * A game is a match of up to -Djankenpon.matchRounds=n rounds (1 by default),
+ * won by the first player to win the majority of them. The rounds are played
+ * by the same game, one after the other:
+ * 		START --round ends, match not decided--> START (next round)
+ * The end of every round is sent as a single {@link Server#GAME_ROUND_RESULT},
+ * see {@link #sendRoundResult(int, int, int, int, long)}. It is the only packet
+ * showing a player's selection to its opponent: while the round is open, the
+ * opponent only learns that the player has selected, and a selection cannot
+ * be changed once made.
+ * The game is kept by its room and reused for the next match, see {@link #reset(Player, Player)}.
+ * 
+ * The countdown is run by the server's {@link GameTicker}, and the selections are
+ * sent by the players; both only queue tasks to the room's {@link Mailbox}, so no
+ * thread is used by a game between two events. The game is only changed by the tasks of
+ * its room's mailbox, so it needs no locks.
+ * The round time is set with -Djankenpon.roundTime=seconds
+ * 
+ * With -Djankenpon.countdown=deadline no {@link Server#GAME_TIME_UPDATE} is sent.
+ * The {@link Server#GAME_STATE_UPDATE} starting the round carries its deadline
+ * and duration instead, and the clients count down on their own:
+ * 		[4 byte -- packet code][4 byte -- room id][4 byte -- state]
+ * 		[8 byte -- deadline, in milliseconds since the epoch][4 byte -- round duration, in milliseconds]
+ * The server keeps the deadline on a monotonic clock; a selection arriving
+ * after it is answered with {@link Server#GAME_SELECTION_REJECTED}.
  * @author alvin_nt
  *
  */
@@ -23,14 +53,54 @@ public class Game {
 	public final static int GAME_CANCELED = -1;
 	
 	/**
-	 * The game time
+	 * Duration of a round, in seconds
+	 */
+	public final static int ROUND_TIME = Integer.getInteger("jankenpon.roundTime", 10);
+	
+	/**
+	 * Whether the clients count down on their own, see above
+	 */
+	public final static boolean DEADLINE_MODE = "deadline".equalsIgnoreCase(System.getProperty("jankenpon.countdown"));
+	
+	/**
+	 * Maximum number of rounds of a match
+	 */
+	public final static int MATCH_ROUNDS = Math.max(1, Integer.getInteger("jankenpon.matchRounds", 1));
+	
+	/**
+	 * The game state
 	 */
 	private int state;
 	
+	/**
+	 * The current round, from 1
+	 */
 	private int round;
 	
-	private int time;
-	private Timer timer;
+	/**
+	 * Number of rounds started by this game, also in earlier matches,
+	 * to tell a late time-up from the current round's
+	 */
+	private int roundSerial;
+	
+	private int player1Wins;
+	private int player2Wins;
+	
+	/**
+	 * Position of the game in the {@link GameTicker}'s table, -1 if its countdown
+	 * is not running. Only used by the ticker.
+	 */
+	int tickerIndex = -1;
+	
+	/**
+	 * End of the round in deadline mode, as given by {@link System#nanoTime()}
+	 */
+	private long deadline;
+	
+	/**
+	 * Ends the round at the deadline, in deadline mode
+	 */
+	private HashedWheelTimer.Timeout deadlineTimeout;
 	
 	private Player player1;
 	private int player1Selection;
@@ -41,18 +111,90 @@ public class Game {
 	private GameRoom connectedRoom;
 	private ByteBuffer bbMessage;
 	
+	/**
+	 * Ends the current round once its time is up, queued to the room's mailbox
+	 * by the {@link GameTicker}, or at the deadline in deadline mode.
+	 * Set for every round, before its countdown starts.
+	 */
+	Runnable timeUp;
+	
+	/**
+	 * Ends a round once its time is up, unless it has already ended
+	 */
+	private final class TimeUp implements Runnable {
+		private final int serial;
+		
+		TimeUp(int serial) {
+			this.serial = serial;
+		}
+		
+		@Override
+		public void run() {
+			if(state == GAME_START && roundSerial == serial) {
+				endRound();
+			}
+		}
+	}
+	
 	public Game(GameRoom room, Player player1, Player player2) {
 		connectedRoom = room;
-		this.player1 = player1;
-		this.player2 = player2;
-		
 		bbMessage = ByteBuffer.allocate(1024);
 		
-		timer = new Timer();
+		reset(player1, player2);
+	}
+	
+	/**
+	 * Prepares the game for a new match
+	 * @param player1 the first player
+	 * @param player2 the second player
+	 */
+	public void reset(Player player1, Player player2) {
+		this.player1 = player1;
+		this.player2 = player2;
+		player1Selection = SELECTION_EMPTY;
+		player2Selection = SELECTION_EMPTY;
+		player1Wins = 0;
+		player2Wins = 0;
+		round = 0;
 		
 		state = GAME_READY;
 	}
 	
+	public int getRound() {
+		return round;
+	}
+	
+	public int getPlayer1Wins() {
+		return player1Wins;
+	}
+	
+	public int getPlayer2Wins() {
+		return player2Wins;
+	}
+	
+	/**
+	 * Gets the winner of the match, from the rounds won so far
+	 * @return 0 - draw, 1 - player 1, 2 - player 2
+	 */
+	public int getMatchWinner() {
+		return player1Wins > player2Wins ? 1 : player2Wins > player1Wins ? 2 : 0;
+	}
+	
+	public int getState() {
+		return state;
+	}
+	
+	public GameRoom getRoom() {
+		return connectedRoom;
+	}
+	
+	/**
+	 * @return true if the game has not ended yet
+	 */
+	public boolean isRunning() {
+		return state == GAME_READY || state == GAME_START;
+	}
+	
 	public int getSelection(int id, int selection) {
 		int ret;
 		
@@ -67,37 +209,103 @@ public class Game {
 		return ret;
 	}
 	
-	public void updateSelection(int id, int selection) throws IOException {
-		if(player1.getId() == id) {
+	/**
+	 * Sets the selection of a player. The round ends once both players have selected.
+	 * @param id the player's id
+	 * @param selection the selection
+	 * @return false if the game is not running, the player is not playing it,
+	 * 			or the selection is invalid
+	 */
+	public boolean updateSelection(int id, int selection) {
+		return updateSelection(id, selection, Player.NO_CORRELATION);
+	}
+	
+	/**
+	 * Sets the selection of a player, replying to its request.
+	 * The player gets its selection back; the other players of the room get
+	 * {@link #SELECTION_EMPTY} instead, until the round result.
+	 * A second selection in the same round is rejected, see {@link Server#GAME_SELECTION_REJECTED}.
+	 * @param id the player's id
+	 * @param selection the selection
+	 * @param correlation the correlation id of the request, see {@link Player#sendReply(ByteBuffer, int)}
+	 * @return false if the game is not running, the player is not playing it,
+	 * 			or the selection is invalid
+	 */
+	public boolean updateSelection(int id, int selection, int correlation) {
+		if(state != GAME_START || selection < SELECTION_ROCK || selection > SELECTION_SCISSORS) {
+			return false;
+		}
+		
+		if(DEADLINE_MODE && System.nanoTime() - deadline >= 0) {
+			rejectSelection(id, selection, correlation);
+			return false;
+		}
+		
+		Player player;
+		if(player1.getId() == id && player1Selection == SELECTION_EMPTY) {
+			player = player1;
 			player1Selection = selection;
-		} else if (player2.getId() == id) {
+		} else if (player2.getId() == id && player2Selection == SELECTION_EMPTY) {
+			player = player2;
 			player2Selection = selection;
 		} else {
-			throw new IOException("No such player!");
+			// already selected in this round
+			rejectSelection(id, selection, correlation);
+			return false;
 		}
 		
 		// response
 		bbMessage.putInt(Server.GAME_SELECTION_UPDATE);
 		bbMessage.putInt(id).putInt(selection);
+		player.sendReply(bbMessage, correlation);
+		bbMessage.clear();
+		
+		// the opponent must not learn the selection before the end of the round
+		bbMessage.putInt(Server.GAME_SELECTION_UPDATE);
+		bbMessage.putInt(id).putInt(SELECTION_EMPTY);
 		
 		try {
-			connectedRoom.broadcastMessage(bbMessage);
+			connectedRoom.broadcastMessage(bbMessage, player);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		
 		bbMessage.clear();
+		
+		if(player1Selection != SELECTION_EMPTY && player2Selection != SELECTION_EMPTY) {
+			endRound();
+		}
+		return true;
 	}
 	
-	private void updateTime(int time) {
-		this.time = time;
-		if(this.time <= 1) {
-			timer.cancel();
-			this.time = 0;
+	/**
+	 * Tells a player its selection came after the deadline, or after its first
+	 * selection of the round
+	 * 
+	 * Packet structure:
+	 * 		[4 byte -- packet code][4 byte -- room id][4 byte -- selection]
+	 */
+	private void rejectSelection(int id, int selection, int correlation) {
+		Player player = player1.getId() == id ? player1 : player2.getId() == id ? player2 : null;
+		if(player == null) {
+			return;
 		}
 		
-		bbMessage.putInt(Server.GAME_TIME_UPDATE);
-		bbMessage.putInt(connectedRoom.getId()).putInt(time);
+		bbMessage.putInt(Server.GAME_SELECTION_REJECTED);
+		bbMessage.putInt(connectedRoom.getId()).putInt(selection);
+		player.sendReply(bbMessage, correlation);
+		bbMessage.clear();
+	}
+	
+	/**
+	 * Updates the game state and broadcasts the status to all players connected to the GameRoom.
+	 * @param state
+	 */
+	private void updateState(int state) {
+		this.state = state;
+		
+		bbMessage.putInt(Server.GAME_STATE_UPDATE);
+		bbMessage.putInt(connectedRoom.getId()).putInt(this.state);
 		
 		try {
 			connectedRoom.broadcastMessage(bbMessage);
@@ -109,14 +317,22 @@ public class Game {
 	}
 	
 	/**
-	 * Updates the game state and broadcasts the status to all players connected to the GameRoom.
-	 * @param state
+	 * Starts the match and the countdown of its first round, then returns
 	 */
-	private void updateState(int state) {
-		this.state = state;
+	public void start() {
+		if(state != GAME_READY) {
+			return;
+		}
+		
+		round = 1;
+		state = GAME_START;
+		long duration = startCountdown();
 		
 		bbMessage.putInt(Server.GAME_STATE_UPDATE);
-		bbMessage.putInt(connectedRoom.getId()).putInt(this.state);
+		bbMessage.putInt(connectedRoom.getId()).putInt(state);
+		if(DEADLINE_MODE) {
+			bbMessage.putLong(System.currentTimeMillis() + duration).putInt((int) duration);
+		}
 		
 		try {
 			connectedRoom.broadcastMessage(bbMessage);
@@ -127,40 +343,144 @@ public class Game {
 		bbMessage.clear();
 	}
 	
-	public void start() {
-		// TODO:
-		// 1. broadcast a message to all players in the room
-		// 2. start the timer
-		// 3. while waiting, get the player's selection
-		// 4. invoke end()
+	/**
+	 * Starts the countdown of the current round
+	 * @return the duration of the round, in milliseconds
+	 */
+	private long startCountdown() {
+		timeUp = new TimeUp(++roundSerial);
 		
-		updateState(GAME_START);
+		long duration = TimeUnit.SECONDS.toMillis(ROUND_TIME);
+		if(!DEADLINE_MODE) {
+			Server.getInstance().ticker.add(this, ROUND_TIME);
+			return duration;
+		}
 		
-		int delay = 1000;
-		int period = 1000;
+		deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration);
 		
-		timer.scheduleAtFixedRate(new TimerTask() {
+		final Runnable task = timeUp;
+		deadlineTimeout = Server.getInstance().timer.schedule(new Runnable() {
 			@Override
 			public void run() {
-				updateTime(time-1);
+				connectedRoom.execute(task);
 			}
-		}, delay, period);
+		}, duration, TimeUnit.MILLISECONDS);
+		return duration;
+	}
+	
+	/**
+	 * Stops the countdown of the round
+	 */
+	private void stopCountdown() {
+		if(deadlineTimeout != null) {
+			deadlineTimeout.cancel();
+		}
+		Server.getInstance().ticker.remove(this);
+	}
+	
+	/**
+	 * Cancels the game, e.g. when a player leaves the room
+	 */
+	public void cancel() {
+		if(state != GAME_READY && state != GAME_START) {
+			return;
+		}
 		
-		while(time > 0) {
-			// get the player's selection here
+		stopCountdown();
+		updateState(GAME_CANCELED);
+		
+		connectedRoom.gameEnded(this);
+	}
+	
+	/**
+	 * Ends the current round, then either starts the next one or ends the match
+	 */
+	private void endRound() {
+		stopCountdown();
+		
+		int winner = getWinner();
+		if(winner == 1) {
+			player1Wins++;
+		} else if(winner == 2) {
+			player2Wins++;
 		}
 		
-		end();
+		boolean decided = round >= MATCH_ROUNDS
+				|| player1Wins > MATCH_ROUNDS / 2 || player2Wins > MATCH_ROUNDS / 2;
+		
+		int ended = round;
+		int selection1 = player1Selection;
+		int selection2 = player2Selection;
+		long duration = decided ? 0 : nextRound();
+		
+		sendRoundResult(ended, selection1, selection2, winner, duration);
+		
+		if(decided) {
+			end();
+		}
 	}
 	
 	/**
-	 * Ends the game
+	 * Clears the selections and starts the next round
+	 * @return the duration of the round, in milliseconds
+	 */
+	private long nextRound() {
+		player1Selection = SELECTION_EMPTY;
+		player2Selection = SELECTION_EMPTY;
+		round++;
+		
+		return startCountdown();
+	}
+	
+	/**
+	 * Sends the result of a round, along with the start of the next round if
+	 * the match goes on
+	 * 
+	 * Packet structure:
+	 * 		[4 byte -- packet code][4 byte -- room id][4 byte -- round]
+	 * 		[4 byte -- player 1's selection][4 byte -- player 2's selection]
+	 * 		[4 byte -- round winner, see {@link #getWinner()}]
+	 * 		[4 byte -- rounds won by player 1][4 byte -- rounds won by player 2]
+	 * 		[4 byte -- next round, 0 if the match is over]
+	 * in deadline mode, if the match goes on, followed by:
+	 * 		[8 byte -- deadline of the next round, in milliseconds since the epoch]
+	 * 		[4 byte -- round duration, in milliseconds]
+	 * @param ended the round that has ended
+	 * @param selection1 player 1's selection in the round
+	 * @param selection2 player 2's selection in the round
+	 * @param winner the winner of the round
+	 * @param duration the duration of the next round in milliseconds, 0 if the match is over
+	 */
+	private void sendRoundResult(int ended, int selection1, int selection2, int winner, long duration) {
+		boolean next = duration > 0;
+		
+		bbMessage.putInt(Server.GAME_ROUND_RESULT);
+		bbMessage.putInt(connectedRoom.getId()).putInt(ended);
+		bbMessage.putInt(selection1).putInt(selection2);
+		bbMessage.putInt(winner);
+		bbMessage.putInt(player1Wins).putInt(player2Wins);
+		bbMessage.putInt(next ? round : 0);
+		if(next && DEADLINE_MODE) {
+			bbMessage.putLong(System.currentTimeMillis() + duration).putInt((int) duration);
+		}
+		
+		try {
+			connectedRoom.broadcastMessage(bbMessage);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		bbMessage.clear();
+	}
+	
+	/**
+	 * Ends the match
 	 */
 	private void end() {
 		updateState(GAME_FINISH);
 		
-		// broadcast the winner
-		int winner = getWinner();
+		// broadcast the winner of the match
+		int winner = getMatchWinner();
 		
 		bbMessage.putInt(Server.GAME_WINNER);
 		bbMessage.putInt(connectedRoom.getId()).putInt(winner);
@@ -172,6 +492,8 @@ public class Game {
 		}
 		
 		bbMessage.clear();
+		
+		connectedRoom.gameEnded(this);
 	}
 	
 	/**
@@ -1,17 +1,38 @@
 package server;
 import java.util.*;
 import java.util.concurrent.*;
-import java.net.*;
 import java.nio.*;
 import java.io.*;
 
+import util.BufferPool;
 import util.StringUtils;
 
+/**
+ * A room where two of the connected players play a {@link Game}.
+ * 
+ * The room and its game are only changed by the tasks of the room's {@link Mailbox},
+ * see {@link #execute(Runnable)}, so they need no locks. The methods that change
+ * the room must be called from the mailbox. The mailbox runs on the shard the
+ * room is pinned to, and the players joining the room are moved to that shard.
+ * 
+ * A quick-match room is made by the {@link Matchmaker} for two paired players.
+ * It is not listed, starts its game right away and is dissolved once the match
+ * has ended: its players leave it, and the room goes back to the matchmaker's pool.
+ * @author alvin_nt
+ *
+ */
 public class GameRoom {
 	// room states
 	public final static int ROOM_WAITING = 1;
 	public final static int ROOM_PLAYING = 2;
 	
+	/**
+	 * Size of the record written by {@link #writeInfo(ByteBuffer)}
+	 */
+	public final static int INFO_SIZE = 4 + StringUtils.NAME_MAXLENGTH + 12;
+	
+	public final static String QUICK_MATCH_NAME = "Quick match";
+	
 	/**
 	 * The room id
 	 */
@@ -42,10 +63,41 @@ public class GameRoom {
 	 */
 	private List<Player> connectedPlayers;
 	
+	/**
+	 * Copy of connectedPlayers, for the threads outside of the mailbox
+	 */
+	private volatile Player[] members;
+	
 	private Player player1;
 	
 	private Player player2;
 	
+	/**
+	 * Position of the room's record in the {@link RoomDirectory}, -1 if not listed.
+	 * Only used by the directory.
+	 */
+	int directoryIndex = -1;
+	
+	/**
+	 * The shard the room is pinned to, see {@link Server#getShard(int)}
+	 */
+	private Executor shard;
+	
+	/**
+	 * Runs every change of the room, one at a time, on the room's shard
+	 */
+	private Mailbox mailbox;
+	
+	/**
+	 * Set once the room has been destroyed
+	 */
+	private boolean destroyed;
+	
+	/**
+	 * Whether the room is a quick-match room
+	 */
+	private final boolean quickMatch;
+	
 	public GameRoom(int masterId, String name) {
 		this.name = name;
 		this.masterId = masterId;
@@ -55,8 +107,88 @@ public class GameRoom {
 		Player master = Server.getInstance().getPlayer(masterId);
 		assert(master != null);
 		connectedPlayers.add(master);
+		membersChanged();
+		
+		state = ROOM_WAITING;
+		quickMatch = false;
+	}
+	
+	/**
+	 * Creates an empty quick-match room, see {@link #seat(Player, Player)}
+	 */
+	GameRoom() {
+		name = QUICK_MATCH_NAME;
+		masterId = -1;
+		connectedPlayers = new LinkedList<>();
+		membersChanged();
 		
 		state = ROOM_WAITING;
+		quickMatch = true;
+	}
+	
+	/**
+	 * Seats the two players of a quick match, both ready to play.
+	 * Both must have claimed the room, see {@link Player#claimRoom(int)}.
+	 * @param player1 the first player, also the room's master
+	 * @param player2 the second player
+	 */
+	void seat(Player player1, Player player2) {
+		masterId = player1.getId();
+		this.player1 = player1;
+		this.player2 = player2;
+		
+		for(Player p: new Player[] {player1, player2}) {
+			connectedPlayers.add(p);
+			p.setReady(true);
+		}
+		membersChanged();
+	}
+	
+	/**
+	 * Clears a dissolved quick-match room, so that it can be reused.
+	 * The game is kept.
+	 */
+	void reset() {
+		masterId = -1;
+		player1 = null;
+		player2 = null;
+		connectedPlayers.clear();
+		membersChanged();
+		
+		state = ROOM_WAITING;
+		destroyed = false;
+	}
+	
+	public boolean isQuickMatch() {
+		return quickMatch;
+	}
+	
+	/**
+	 * Pins the room to a shard. Must be called before any task is queued.
+	 * @param shard the shard
+	 */
+	void setShard(Executor shard) {
+		this.shard = shard;
+		mailbox = new Mailbox(shard);
+	}
+	
+	public Executor getShard() {
+		return shard;
+	}
+	
+	/**
+	 * Queues a task to the room's mailbox
+	 * @param task the task, which may change the room and its game
+	 */
+	public void execute(Runnable task) {
+		mailbox.execute(task);
+	}
+	
+	/**
+	 * @return true if the room has been destroyed
+	 */
+	public boolean isDestroyed() {
+		return destroyed;
 	}
 	
 	/**
@@ -77,6 +209,7 @@ public class GameRoom {
 	
 	public void setMasterId(int id) {
 		this.masterId = id;
+		Server.getInstance().directory.update(this);
 	}
 	
 	public int getMasterId() {
@@ -105,6 +238,7 @@ public class GameRoom {
 	 */
 	public void setName(String name) {
 		this.name = name;
+		Server.getInstance().directory.update(this);
 	}
 	
 	/**
@@ -119,7 +253,7 @@ public class GameRoom {
 	 */
 	public void addPlayer(Player player) throws IOException {
 		// prepare the response to be broadcasted to all players connected
-		ByteBuffer bb = ByteBuffer.allocate(1024);
+		ByteBuffer bb = BufferPool.HEAP.acquire();
 		
 		bb.putInt(Server.ROOM_PLAYER_JOINED);
 		bb.putInt(player.getId());
@@ -130,9 +264,12 @@ public class GameRoom {
 		}
 		
 		broadcastMessage(bb);
+		BufferPool.HEAP.release(bb);
 		
 		// add the player after the response
 		connectedPlayers.add(player);
+		membersChanged();
+		Server.getInstance().directory.update(this);
 	}
 	
 	/**
@@ -141,59 +278,143 @@ public class GameRoom {
 	 * @throws IOException 
 	 */
 	public void removePlayer(Player player) throws IOException {
+		if(player == player1 || player == player2) {
+			if(game != null) {
+				game.cancel();
+			}
+			if(player == player1) {
+				player1 = null;
+			} else {
+				player2 = null;
+			}
+		}
+		
 		int targetPlayerLocation = connectedPlayers.indexOf(player);
 		connectedPlayers.remove(targetPlayerLocation);
+		membersChanged();
+		Server.getInstance().directory.update(this);
 		player.setConnectedRoom(Player.NO_ROOM);
 		player.setReady(false);
 		
 		// prepare the response to be broadcasted to all players connected
-		ByteBuffer bb = ByteBuffer.allocate(1024);
+		ByteBuffer bb = BufferPool.HEAP.acquire();
 				
 		bb.putInt(Server.ROOM_PLAYER_DISCONNECTED);
 		bb.putInt(player.getId());
 		
 		broadcastMessage(bb);
+		BufferPool.HEAP.release(bb);
 	}
 	
 	/**
-	 * Sends a list of all players connected to this room
+	 * Sends a list of all players connected to this room, one packet per player,
+	 * followed by a {@link Server#ROOM_PLAYER_INFO_END} packet
 	 * 
 	 * Packet structure:
 	 * 		[4 byte -- packet code][4 byte -- player id][2 byte -- master flag][32 byte -- player name][rest -- null]
 	 * 		master flag --> 'M' if the player is the room's master, else it's S.
-	 * @param connection
-	 * 				Connection to client
+	 * The end of the list:
+	 * 		[4 byte -- packet code][4 byte -- room id][4 byte -- no. of players]
+	 * @param requester
+	 * 				the player asking for the list
+	 * @param correlation
+	 * 				the correlation id of the request, see {@link Player#sendReply(ByteBuffer, int)}
 	 * @throws IOException
 	 */
-	public void queryPlayers(Socket connection) throws IOException {
-		Server server = Server.getInstance();
-		
-		ByteBuffer bb = ByteBuffer.allocate(1024);
+	public void queryPlayers(Player requester, int correlation) throws IOException {
+		ByteBuffer bb = BufferPool.HEAP.acquire();
 		for(Player p : connectedPlayers) {
 			bb.putInt(Server.ROOM_PLAYER_INFO).putInt(p.getId());
 			
 			char masterFlag = isPlayerMaster(p, this) ? 'M' : 'S';
 			bb.putChar(masterFlag);
 			
-			bb.put(p.getName().getBytes());
+			StringUtils.putName(bb, p.getName());
 			
-			server.sendResponse(bb.array(), connection);
+			requester.sendReply(bb, correlation);
 			bb.clear();
 		}
+		
+		bb.putInt(Server.ROOM_PLAYER_INFO_END).putInt(id).putInt(connectedPlayers.size());
+		requester.sendReply(bb, correlation);
+		
+		BufferPool.HEAP.release(bb);
 	}
 	
 	/**
 	 * Melempar pesan ke semua player yang terhubung pada GameRoom ini
-	 * @param bb ByteBuffer
+	 * @param bb ByteBuffer, written from index 0 up to its position
 	 * @throws IOException 
 	 */
 	public void broadcastMessage(ByteBuffer bb) throws IOException {
+		Broadcast broadcast = new Broadcast(bb);
 		for(Player p: connectedPlayers) {
-			OutputStream os = new DataOutputStream(new BufferedOutputStream(p.getConnection().getOutputStream()));
-			
-			os.write(bb.array());
-			os.flush();
+			broadcast.send(p);
+		}
+		broadcast.release();
+	}
+	
+	/**
+	 * Sends a packet to all the players connected to this room, as the reply to
+	 * a request of one of them. The requester's copy carries the request's
+	 * correlation id, see {@link Player#sendReply(ByteBuffer, int)}.
+	 * @param bb ByteBuffer, written from index 0 up to its position
+	 * @param requester the player who sent the request, null if none
+	 * @param correlation the correlation id of the request
+	 * @throws IOException
+	 */
+	public void broadcastReply(ByteBuffer bb, Player requester, int correlation) throws IOException {
+		if(requester == null || correlation == Player.NO_CORRELATION || !connectedPlayers.contains(requester)) {
+			broadcastMessage(bb);
+			return;
+		}
+		
+		broadcastMessage(bb, requester);
+		requester.sendReply(bb, correlation);
+	}
+	
+	/**
+	 * Sends a packet to all the players connected to this room but one
+	 * @param bb ByteBuffer, written from index 0 up to its position
+	 * @param excluded the player left out
+	 * @throws IOException
+	 */
+	public void broadcastMessage(ByteBuffer bb, Player excluded) throws IOException {
+		Broadcast broadcast = new Broadcast(bb);
+		for(Player p: connectedPlayers) {
+			if(p != excluded) {
+				broadcast.send(p);
+			}
 		}
+		broadcast.release();
+	}
+	
+	/**
+	 * Gets the players connected to the room, e.g. for the {@link GameTicker}.
+	 * May be called by any thread.
+	 * @return the players, not to be changed
+	 */
+	Player[] getMembers() {
+		return members;
+	}
+	
+	private void membersChanged() {
+		members = connectedPlayers.toArray(new Player[connectedPlayers.size()]);
+	}
+	
+	/**
+	 * Writes the room's record, as listed to the players
+	 * @param bb
+	 * 			the target buffer. {@link #INFO_SIZE} bytes are written:
+	 * 			[4 byte -- ID room][32 byte -- nama room][4 byte -- no. of connected players]
+	 * 			[4 byte -- room master's id][4 byte -- room state]
+	 */
+	public void writeInfo(ByteBuffer bb) {
+		bb.putInt(id);
+		StringUtils.putName(bb, name);
+		bb.putInt(getPlayerCount());
+		bb.putInt(masterId);
+		bb.putInt(state);
 	}
 	
 	/**
@@ -209,12 +430,32 @@ public class GameRoom {
 	 * @throws IOException 
 	 */
 	public void destroy() throws IOException {
-		ByteBuffer bb = ByteBuffer.allocate(1024);
+		destroy(null, Player.NO_CORRELATION);
+	}
+	
+	/**
+	 * Disconnects all player from this room, as asked by one of them
+	 * @param requester the player who asked for it, null if none
+	 * @param correlation the correlation id of the request
+	 * @throws IOException 
+	 */
+	public void destroy(Player requester, int correlation) throws IOException {
+		if(destroyed) {
+			return;
+		}
+		destroyed = true;
+		
+		if(game != null) {
+			game.cancel();
+		}
+		
+		ByteBuffer bb = BufferPool.HEAP.acquire();
 		
 		bb.putInt(Server.ROOM_DESTROYED);
 		
 		// send the package
-		broadcastMessage(bb);
+		broadcastReply(bb, requester, correlation);
+		BufferPool.HEAP.release(bb);
 		
 		// disconnect all players
 		for(Player p: connectedPlayers) {
@@ -222,6 +463,7 @@ public class GameRoom {
 			p.setConnectedRoom(Player.NO_ROOM);
 		}
 		connectedPlayers.clear();
+		membersChanged();
 	}
 	
 	/**
@@ -231,6 +473,17 @@ public class GameRoom {
 	 * @throws IOException 
 	 */
 	public void setPlayerReady(Player player) throws IOException {
+		setPlayerReady(player, null, Player.NO_CORRELATION);
+	}
+	
+	/**
+	 * Sets the readiness state of a player, as asked by a player
+	 * @param player the selected player
+	 * @param requester the player who sent the request, null if none
+	 * @param correlation the correlation id of the request
+	 * @throws IOException 
+	 */
+	public void setPlayerReady(Player player, Player requester, int correlation) throws IOException {
 		assert(connectedPlayers.contains(player));
 		
 		player.setReady(true);
@@ -243,31 +496,111 @@ public class GameRoom {
 		}
 		
 		// prepare the response
-		ByteBuffer bb = ByteBuffer.allocate(1024);
+		ByteBuffer bb = BufferPool.HEAP.acquire();
 		
 		bb.putInt(Server.ROOM_PLAYER_INFO_READY);
 		bb.putInt(player.getId());
 		
-		broadcastMessage(bb);
+		broadcastReply(bb, requester, correlation);
+		BufferPool.HEAP.release(bb);
 	}
 	
+	/**
+	 * Starts a game between the two ready players. The game runs on its own,
+	 * see {@link Game}; this method returns immediately.
+	 * Ignored unless two players are ready and no game is running.
+	 * @throws IOException
+	 */
 	public void startGame() throws IOException {
-		assert(player1 != null && player2 != null);
-		game = new Game(this, player1, player2);
-		
-		// TODO:
-		// 1. broadcast that the game is going to be started
-		// 2. change the room state: other connections are going to be refused
-		// 3. initiate game.start()
-		// 4. sit back and relax~
+		startGame(null, Player.NO_CORRELATION);
+	}
+	
+	/**
+	 * Starts a game between the two ready players, as asked by the room's master
+	 * @param requester the player who sent the request, null if none
+	 * @param correlation the correlation id of the request
+	 * @throws IOException
+	 */
+	public void startGame(Player requester, int correlation) throws IOException {
+		if(player1 == null || player2 == null || state == ROOM_PLAYING) {
+			return;
+		}
+		// the game is kept for the next matches
+		if(game == null) {
+			game = new Game(this, player1, player2);
+		} else {
+			game.reset(player1, player2);
+		}
 		
-		ByteBuffer bb = ByteBuffer.allocate(1024);
+		ByteBuffer bb = BufferPool.HEAP.acquire();
 		bb.putInt(Server.ROOM_GAME_START).putInt(id);
 		
-		broadcastMessage(bb);
+		broadcastReply(bb, requester, correlation);
+		BufferPool.HEAP.release(bb);
+		
+		state = ROOM_PLAYING;
+		Server.getInstance().directory.update(this);
+		
 		game.start();
 	}
 	
+	/**
+	 * Called by the {@link Game} once it has finished or has been canceled.
+	 * The room waits for players to be ready again.
+	 * 
+	 * Packet structure:
+	 * 		[4 byte -- {@link Server#ROOM_GAME_END} or {@link Server#ROOM_GAME_CANCEL}][4 byte -- room id]
+	 * @param ended the game
+	 */
+	void gameEnded(Game ended) {
+		if(ended != game) {
+			return;
+		}
+		
+		ByteBuffer bb = BufferPool.HEAP.acquire();
+		bb.putInt(ended.getState() == Game.GAME_CANCELED ? Server.ROOM_GAME_CANCEL : Server.ROOM_GAME_END).putInt(id);
+		try {
+			broadcastMessage(bb);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		BufferPool.HEAP.release(bb);
+		
+		if(quickMatch && ended.getState() == Game.GAME_FINISH) {
+			Matchmaker.rate(player1, player2, ended.getMatchWinner());
+		}
+		
+		for(Player p: connectedPlayers) {
+			p.setReady(false);
+		}
+		player1 = null;
+		player2 = null;
+		
+		state = ROOM_WAITING;
+		Server.getInstance().directory.update(this);
+		
+		if(quickMatch && !destroyed) {
+			dissolve();
+		}
+	}
+	
+	/**
+	 * Sends the players of a quick-match room back to the lobby, then gives
+	 * the room back to the {@link Matchmaker}
+	 */
+	private void dissolve() {
+		for(Player p: connectedPlayers) {
+			p.setConnectedRoom(Player.NO_ROOM);
+		}
+		connectedPlayers.clear();
+		membersChanged();
+		
+		Server server = Server.getInstance();
+		if(server.removeRoom(this)) {
+			server.matchmaker.recycle(this);
+		}
+	}
+	
 	/**
 	 * Checks if a player is the master in a certain room
 	 * @param p
@@ -0,0 +1,266 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import util.BufferPool;
+import util.FrameUtils;
+import util.HashedWheelTimer;
+import util.SharedFrame;
+
+/**
+ * Runs the countdown of every running {@link Game}.
+ *
+ * The countdowns are kept in a compact table instead of a timer task per game.
+ * Once per second, a single pass over the table takes a second off every game
+ * and sends its {@link Server#GAME_TIME_UPDATE} to the players of its room.
+ * The packets of a pass are encoded back to back into a few large frames, one
+ * series per framing version, and every player is sent a slice of them: a
+ * player is in a single room, so every connection gets one write per pass.
+ * When a game's time is up, its room's mailbox is told to end the game.
+ *
+ * A game started during a second is only counted from the next pass, so the
+ * first second of a round lasts between one and two seconds.
+ * The passes run on the server's timer thread.
+ *
+ * Packet structure:
+ * 		[4 byte -- packet code][4 byte -- room id][4 byte -- seconds left]
+ * @author alvin_nt
+ *
+ */
+public class GameTicker {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final Object lock = new Object();
+
+	// the table, packed at the start of the arrays
+	private Game[] games;
+	private int[] roomIds;
+
+	/**
+	 * Seconds left to every game
+	 */
+	private int[] remaining;
+
+	/**
+	 * The pass during which every game has been added
+	 */
+	private int[] addedIn;
+
+	private int count;
+
+	/**
+	 * Number of passes so far
+	 */
+	private int pass;
+
+	// used by the passes only
+	private final ByteBuffer message;
+	private final Batch[] batches;
+
+	/**
+	 * Number of packets encoded so far, to tell the packets apart in the {@link Batch}es
+	 */
+	private int serial;
+
+	/**
+	 * The frames of a pass for a framing version
+	 */
+	private static final class Batch {
+		private final int version;
+
+		private ByteBuffer buffer;
+		private SharedFrame frames;
+
+		/**
+		 * The frame of the last packet, and its serial
+		 */
+		private SharedFrame current;
+		private int currentSerial = -1;
+
+		Batch(int version) {
+			this.version = version;
+		}
+
+		/**
+		 * Gets the frame of a packet, encoding it unless it is the last one encoded
+		 * @param message the packet
+		 * @param serial the packet's serial
+		 * @param pool the pool the frames are taken from
+		 * @return the frame, valid until the next packet is encoded
+		 */
+		SharedFrame get(ByteBuffer message, int serial, BufferPool pool) {
+			if(serial == currentSerial) {
+				return current;
+			}
+			releaseCurrent();
+
+			int size = FrameUtils.getFrameSize(message.position(), version);
+			if(buffer == null || buffer.remaining() < size) {
+				close();
+				buffer = pool.acquire(BufferPool.LARGE_BUFFER_SIZE);
+				frames = SharedFrame.wrap(buffer, pool);
+			}
+
+			int offset = buffer.position();
+			FrameUtils.encode(message, version, buffer);
+			current = frames.slice(offset, size);
+			currentSerial = serial;
+			return current;
+		}
+
+		private void releaseCurrent() {
+			if(current != null) {
+				current.release();
+				current = null;
+			}
+			currentSerial = -1;
+		}
+
+		/**
+		 * Drops the batch's references, at the end of a pass.
+		 * The frames are freed once every player has written them.
+		 */
+		void close() {
+			releaseCurrent();
+			if(frames != null) {
+				frames.release();
+				frames = null;
+				buffer = null;
+			}
+		}
+	}
+
+	/**
+	 * @param timer the timer running the passes
+	 */
+	public GameTicker(HashedWheelTimer timer) {
+		games = new Game[INITIAL_CAPACITY];
+		roomIds = new int[INITIAL_CAPACITY];
+		remaining = new int[INITIAL_CAPACITY];
+		addedIn = new int[INITIAL_CAPACITY];
+
+		message = ByteBuffer.allocate(12);
+		batches = new Batch[FrameUtils.CURRENT_VERSION + 1];
+		for(int i = 0; i < batches.length; i++) {
+			batches[i] = new Batch(i);
+		}
+
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				sweep();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Starts the countdown of a game
+	 * @param game the game
+	 * @param seconds the duration of the countdown
+	 */
+	public void add(Game game, int seconds) {
+		synchronized(lock) {
+			if(game.tickerIndex >= 0) {
+				return;
+			}
+
+			if(count == games.length) {
+				games = Arrays.copyOf(games, count * 2);
+				roomIds = Arrays.copyOf(roomIds, count * 2);
+				remaining = Arrays.copyOf(remaining, count * 2);
+				addedIn = Arrays.copyOf(addedIn, count * 2);
+			}
+
+			games[count] = game;
+			roomIds[count] = game.getRoom().getId();
+			remaining[count] = seconds;
+			addedIn[count] = pass;
+			game.tickerIndex = count++;
+		}
+	}
+
+	/**
+	 * Stops the countdown of a game. No time update of the game is sent
+	 * once this method has returned.
+	 * @param game the game
+	 */
+	public void remove(Game game) {
+		synchronized(lock) {
+			if(game.tickerIndex >= 0) {
+				remove(game.tickerIndex);
+			}
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock
+	 */
+	private void remove(int index) {
+		// move the last game into the hole
+		int last = count - 1;
+		games[index].tickerIndex = -1;
+		if(index != last) {
+			games[index] = games[last];
+			roomIds[index] = roomIds[last];
+			remaining[index] = remaining[last];
+			addedIn[index] = addedIn[last];
+			games[index].tickerIndex = index;
+		}
+		games[last] = null;
+		count = last;
+	}
+
+	/**
+	 * @return the number of running countdowns
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Takes a second off every game, once per second
+	 */
+	private void sweep() {
+		synchronized(lock) {
+			try {
+				// backwards, so that removing a game only moves one that is done
+				for(int i = count - 1; i >= 0; i--) {
+					if(addedIn[i] == pass) {
+						continue;
+					}
+
+					int time = --remaining[i];
+					Game game = games[i];
+					send(game.getRoom(), roomIds[i], time);
+
+					if(time <= 0) {
+						remove(i);
+						game.getRoom().execute(game.timeUp);
+					}
+				}
+			} finally {
+				for(Batch batch: batches) {
+					batch.close();
+				}
+				pass++;
+			}
+		}
+	}
+
+	/**
+	 * Sends a time update to the players of a room.
+	 * Must be called while holding the lock.
+	 */
+	private void send(GameRoom room, int roomId, int time) {
+		message.clear();
+		message.putInt(Server.GAME_TIME_UPDATE).putInt(roomId).putInt(Math.max(0, time));
+		serial++;
+
+		for(Player p: room.getMembers()) {
+			Connection connection = p.getConnection();
+			connection.write(batches[p.getProtocolVersion()].get(message, serial, connection.getBufferPool()));
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+import util.BufferPool;
+import util.FrameUtils;
+import util.IntObjectMap;
+import util.SharedFrame;
+
+/**
+ * Pushes the changes of the room list to the subscribed players.
+ *
+ * A subscriber first gets the whole list, as for {@link Server#PLAYER_QUERY_ROOM_PAGE},
+ * written as its connection drains, then {@link Server#LOBBY_UPDATE} packets with the rooms that have changed since.
+ * The changes are collected by the {@link RoomDirectory} and sent together
+ * after a short delay, so a room changing several times in a row is sent once.
+ * The delay is set with -Djankenpon.lobbyFlushDelay=millis; the changes are
+ * sent by the server's timer thread.
+ *
+ * Packet structure:
+ * 		[4 byte -- packet code][4 byte -- list version][4 byte -- no. of changes]
+ * 		[52 byte each -- changes]
+ * Every change is:
+ * 		[4 byte -- change flags][48 byte -- room record, see {@link GameRoom#writeInfo(ByteBuffer)}]
+ * The record of a removed room only holds its id.
+ * @author alvin_nt
+ *
+ */
+public class Lobby {
+	// change flags
+	public static final int ROOM_ADDED = 1;
+	public static final int ROOM_REMOVED = 2;
+	public static final int ROOM_PLAYERS_CHANGED = 4;
+	public static final int ROOM_STATE_CHANGED = 8;
+	public static final int ROOM_INFO_CHANGED = 16;
+
+	public static final int CHANGE_SIZE = 4 + GameRoom.INFO_SIZE;
+
+	private static final int HEADER_SIZE = 12;
+
+	private static final long FLUSH_DELAY = Long.getLong("jankenpon.lobbyFlushDelay", 100);
+
+	private final Set<Player> subscribers;
+
+	/**
+	 * The subscribers whose list is still being written
+	 */
+	private final ConcurrentMap<Player, Feed> feeds = new ConcurrentHashMap<>();
+
+	private final Object lock = new Object();
+
+	/**
+	 * The rooms changed since the last flush, with their change flags
+	 */
+	private IntObjectMap<Change> changes;
+
+	private boolean flushScheduled;
+
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	};
+
+	private static final class Change {
+		final GameRoom room;
+		int flags;
+
+		Change(GameRoom room, int flags) {
+			this.room = room;
+			this.flags = flags;
+		}
+	}
+
+	/**
+	 * The list sent to a new subscriber, followed by the changes sent while
+	 * the list is being written. Once done, the changes are written directly.
+	 */
+	private final class Feed implements Connection.FrameSource {
+		private final Player player;
+
+		/**
+		 * The snapshot's frames, only used by the connection's pump
+		 */
+		Connection.FrameSource list;
+
+		private final Deque<SharedFrame> held = new ArrayDeque<>();
+
+		private boolean done;
+
+		Feed(Player player) {
+			this.player = player;
+		}
+
+		/**
+		 * Holds a change until the list has been written
+		 * @param frame the change
+		 * @return false if the list is done, and the change must be written directly
+		 */
+		synchronized boolean hold(SharedFrame frame) {
+			if(done) {
+				return false;
+			}
+			held.addLast(frame.retain());
+			return true;
+		}
+
+		@Override
+		public SharedFrame next() {
+			if(list != null) {
+				SharedFrame frame = list.next();
+				if(frame != null) {
+					return frame;
+				}
+				list.close();
+				list = null;
+			}
+
+			synchronized(this) {
+				SharedFrame frame = held.pollFirst();
+				if(frame == null) {
+					// the last held change has been queued
+					done = true;
+					feeds.remove(player, this);
+				}
+				return frame;
+			}
+		}
+
+		@Override
+		public void close() {
+			if(list != null) {
+				list.close();
+				list = null;
+			}
+
+			synchronized(this) {
+				done = true;
+				SharedFrame frame;
+				while((frame = held.pollFirst()) != null) {
+					frame.release();
+				}
+			}
+			feeds.remove(player, this);
+		}
+	}
+
+	public Lobby() {
+		subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Player, Boolean>());
+		changes = new IntObjectMap<>();
+	}
+
+	/**
+	 * Subscribes a player, then sends the whole room list.
+	 * The list is the reply to the request: its packets carry the request's
+	 * correlation id, the {@link Server#LOBBY_UPDATE} packets that follow do not.
+	 * @param player the player
+	 * @param correlation the request's correlation id, see {@link Player#sendReply(ByteBuffer, int)}
+	 */
+	public void subscribe(Player player, int correlation) {
+		// subscribe first, so no change made after the snapshot is missed.
+		// Changes already contained in the snapshot may be sent again.
+		// The list is written as the connection drains; the changes sent
+		// meanwhile are held by the feed, so that they follow the list.
+		Feed feed = new Feed(player);
+		feeds.put(player, feed);
+		subscribers.add(player);
+
+		Connection connection = player.getConnection();
+		RoomDirectory.Snapshot snapshot = Server.getInstance().directory.acquire();
+		try {
+			feed.list = snapshot.list(0, snapshot.getCount(), true,
+					player.getProtocolVersion(), correlation, connection.getBufferPool());
+		} finally {
+			snapshot.release();
+		}
+		connection.writePaced(feed);
+	}
+
+	public void unsubscribe(Player player) {
+		subscribers.remove(player);
+	}
+
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	/**
+	 * Records a change of a room, to be sent with the next flush.
+	 * Called by the {@link RoomDirectory}.
+	 * @param room the room
+	 * @param flags the change flags
+	 */
+	void changed(GameRoom room, int flags) {
+		if(flags == 0) {
+			return;
+		}
+
+		synchronized(lock) {
+			Change change = changes.get(room.getId());
+			if(change == null) {
+				changes.put(room.getId(), new Change(room, flags));
+			} else if((flags & ROOM_REMOVED) != 0) {
+				change.flags = ROOM_REMOVED;
+			} else {
+				change.flags |= flags;
+			}
+
+			if(!flushScheduled) {
+				flushScheduled = true;
+				Server.getInstance().timer.schedule(flush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Sends the changes collected since the last flush to every subscriber
+	 */
+	private void flush() {
+		IntObjectMap<Change> pending;
+		synchronized(lock) {
+			pending = changes;
+			changes = new IntObjectMap<>();
+			flushScheduled = false;
+		}
+
+		if(pending.isEmpty() || subscribers.isEmpty()) {
+			return;
+		}
+
+		// encode the changes, with the records as they are now
+		RoomDirectory directory = Server.getInstance().directory;
+		int version = directory.getVersion();
+		ByteBuffer entries = ByteBuffer.allocate(pending.size() * CHANGE_SIZE);
+		for(Change change: pending) {
+			int start = entries.position();
+			entries.putInt(change.flags);
+
+			if((change.flags & ROOM_REMOVED) != 0 || !directory.writeRecord(change.room, entries)) {
+				entries.position(start);
+				entries.putInt(ROOM_REMOVED).putInt(change.room.getId());
+				entries.position(start + CHANGE_SIZE);
+			}
+		}
+		entries.flip();
+
+		for(int protocolVersion = FrameUtils.VERSION_LEGACY; protocolVersion <= FrameUtils.CURRENT_VERSION; protocolVersion++) {
+			send(entries.duplicate(), version, protocolVersion);
+		}
+	}
+
+	/**
+	 * Sends the changes to the subscribers using a certain framing version
+	 */
+	private void send(ByteBuffer entries, int version, int protocolVersion) {
+		// legacy frames are padded to a fixed size, so they hold fewer changes
+		int frameSize = protocolVersion == FrameUtils.VERSION_LEGACY ?
+				FrameUtils.LEGACY_FRAME_SIZE : FrameUtils.MAX_FRAME_SIZE;
+		int perPacket = (frameSize - HEADER_SIZE) / CHANGE_SIZE;
+
+		List<Player> recipients = new ArrayList<>();
+		for(Player p: subscribers) {
+			if(p.getProtocolVersion() == protocolVersion) {
+				recipients.add(p);
+			}
+		}
+		if(recipients.isEmpty()) {
+			return;
+		}
+
+		int total = entries.remaining() / CHANGE_SIZE;
+		ByteBuffer bb = BufferPool.HEAP.acquire(HEADER_SIZE + Math.min(perPacket, total) * CHANGE_SIZE);
+		for(int from = 0; from < total; from += perPacket) {
+			int n = Math.min(perPacket, total - from);
+
+			bb.clear();
+			bb.putInt(Server.LOBBY_UPDATE).putInt(version).putInt(n);
+			ByteBuffer slice = entries.duplicate();
+			slice.position(from * CHANGE_SIZE).limit((from + n) * CHANGE_SIZE);
+			bb.put(slice);
+
+			Broadcast broadcast = new Broadcast(bb);
+			for(Player p: recipients) {
+				Feed feed = feeds.get(p);
+				if(feed == null || !feed.hold(broadcast.getFrame(p))) {
+					broadcast.send(p);
+				}
+			}
+			broadcast.release();
+		}
+		BufferPool.HEAP.release(bb);
+	}
+}
@@ -0,0 +1,92 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in the order they have been submitted, on a pool
+ * shared with other mailboxes.
+ *
+ * A {@link GameRoom} and its {@link Game} are only changed by the tasks of the
+ * room's mailbox, so they need no locks, while different rooms still run in
+ * parallel on the pool's threads. A mailbox holds no thread while it is empty.
+ *
+ * A busy mailbox gives its thread back to the pool after a batch of tasks, so
+ * that one room cannot starve the others.
+ * @author alvin_nt
+ *
+ */
+public class Mailbox implements Executor {
+	private static final int BATCH_SIZE = 64;
+
+	private final Executor pool;
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Whether the mailbox has been submitted to the pool, or is running.
+	 * Setting and clearing it also publishes the changes made by one task to the next.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * @param pool the pool running the tasks
+	 */
+	public Mailbox(Executor pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Queues a task. The task runs after every task submitted before it,
+	 * and never at the same time as another task of this mailbox.
+	 * @param task the task
+	 */
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		schedule();
+	}
+
+	private void schedule() {
+		if(scheduled.compareAndSet(false, true)) {
+			try {
+				pool.execute(drain);
+			} catch (RejectedExecutionException e) {
+				// the server is shutting down
+				scheduled.set(false);
+			}
+		}
+	}
+
+	private void drain() {
+		for(int i = 0; i < BATCH_SIZE; i++) {
+			Runnable task = tasks.poll();
+			if(task == null) {
+				break;
+			}
+
+			try {
+				task.run();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+
+		scheduled.set(false);
+
+		// tasks added while running, or left over from a full batch
+		if(!tasks.isEmpty()) {
+			schedule();
+		}
+	}
+}
@@ -0,0 +1,476 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import util.BufferPool;
+import util.HashedWheelTimer;
+import util.StringUtils;
+
+/**
+ * Pairs the players asking for a quick match, see {@link Server#PLAYER_QUICK_MATCH}.
+ *
+ * The waiting players are indexed by rating, in buckets of
+ * -Djankenpon.ratingBucket=n points; every bucket is a FIFO queue with a lock
+ * of its own, so players of different ratings queue without contending.
+ * A new player is paired at once with the oldest player of its own bucket, if
+ * any. Otherwise it waits, and the longer it waits the further it looks: every
+ * -Djankenpon.widenInterval=millis of waiting widens its search by one
+ * bucket on each side, up to -Djankenpon.maxWiden=n buckets. The searches of
+ * the waiting players are run by the server's timer every
+ * -Djankenpon.matchInterval=millis; a search only holds one bucket's lock at
+ * a time.
+ *
+ * A pair goes straight into a quick-match {@link GameRoom}, which starts the
+ * game right away and is dissolved once the match has ended. The rooms, with
+ * their {@link Game}, are then kept in a pool and reused for the next pairs.
+ * The result of the match updates both players' rating, see
+ * {@link #rate(Player, Player, int)}.
+ *
+ * The queue depth and the percentiles of the time waited for a match are
+ * logged every -Djankenpon.matchStatsInterval=seconds while players are queued.
+ *
+ * Packet structure of {@link Server#PLAYER_QUICK_MATCH_FOUND}:
+ * 		[4 byte -- packet code][4 byte -- room id][4 byte -- the player's number in the game, 1 or 2]
+ * 		[4 byte -- opponent's id][32 byte -- opponent's name][4 byte -- opponent's rating]
+ * @author alvin_nt
+ *
+ */
+public class Matchmaker {
+	public static final int INITIAL_RATING = 1500;
+	public static final int MAX_RATING = 4000;
+
+	private static final int RATING_K = 32;
+
+	private static final int BUCKET_WIDTH = Math.max(1, Integer.getInteger("jankenpon.ratingBucket", 100));
+	private static final long WIDEN_INTERVAL = Math.max(1, Long.getLong("jankenpon.widenInterval", 200));
+	private static final int MAX_WIDEN = Integer.getInteger("jankenpon.maxWiden", 5);
+	private static final long MATCH_INTERVAL = Long.getLong("jankenpon.matchInterval", 50);
+	private static final long STATS_INTERVAL = Long.getLong("jankenpon.matchStatsInterval", 10);
+
+	private static final int POOL_LIMIT = Integer.getInteger("jankenpon.roomPoolSize", 1024);
+
+	// resolution and range of the wait time histogram
+	private static final int HISTOGRAM_STEP = 10;
+	private static final int HISTOGRAM_SIZE = 1001;
+
+	// ticket states
+	private static final int TICKET_WAITING = 0;
+	private static final int TICKET_SEARCHING = 1;
+	private static final int TICKET_MATCHED = 2;
+	private static final int TICKET_CANCELLED = 3;
+
+	/**
+	 * The waiting players, by rating. Each bucket is also its own lock.
+	 */
+	private final ArrayDeque<Ticket>[] buckets;
+
+	/**
+	 * The ticket of every queued player
+	 */
+	private final ConcurrentHashMap<Player, Ticket> tickets = new ConcurrentHashMap<>();
+
+	private final AtomicInteger depth = new AtomicInteger();
+
+	/**
+	 * Dissolved quick-match rooms, ready to be reused
+	 */
+	private final Queue<GameRoom> pool = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	private final AtomicInteger matches = new AtomicInteger();
+
+	/**
+	 * Wait times of the players paired since the last stats, in steps of
+	 * {@link #HISTOGRAM_STEP} milliseconds; the last step holds the longer ones
+	 */
+	private final AtomicIntegerArray waitTimes = new AtomicIntegerArray(HISTOGRAM_SIZE);
+
+	/**
+	 * A queued player
+	 */
+	private static final class Ticket {
+		final Player player;
+		final int bucket;
+		final long queuedAt;
+
+		final AtomicInteger state = new AtomicInteger(TICKET_SEARCHING);
+
+		Ticket(Player player, int bucket) {
+			this.player = player;
+			this.bucket = bucket;
+			queuedAt = System.nanoTime();
+		}
+
+		/**
+		 * @return the number of buckets searched on each side
+		 */
+		int getWiden(long now) {
+			return (int) Math.min(MAX_WIDEN, TimeUnit.NANOSECONDS.toMillis(now - queuedAt) / WIDEN_INTERVAL);
+		}
+	}
+
+	/**
+	 * @param timer the timer running the searches
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public Matchmaker(HashedWheelTimer timer) {
+		buckets = new ArrayDeque[MAX_RATING / BUCKET_WIDTH + 1];
+		for(int i = 0; i < buckets.length; i++) {
+			buckets[i] = new ArrayDeque<>();
+		}
+
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				widen();
+			}
+		}, MATCH_INTERVAL, MATCH_INTERVAL, TimeUnit.MILLISECONDS);
+
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				logStats();
+			}
+		}, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	private int bucketOf(int rating) {
+		return Math.max(0, Math.min(MAX_RATING, rating)) / BUCKET_WIDTH;
+	}
+
+	/**
+	 * Pairs a player with the oldest player of its bucket, or queues it.
+	 * Nothing happens if the player is already queued.
+	 * @param player the player, who must not be in a room
+	 */
+	public void enqueue(Player player) {
+		Ticket ticket = new Ticket(player, bucketOf(player.getRating()));
+		if(tickets.putIfAbsent(player, ticket) != null) {
+			return;
+		}
+
+		// search and queue under the same lock, so two players of a bucket never miss each other
+		Ticket other;
+		ArrayDeque<Ticket> bucket = buckets[ticket.bucket];
+		synchronized(bucket) {
+			other = take(bucket, ticket);
+			if(other == null) {
+				bucket.addLast(ticket);
+				depth.incrementAndGet();
+				ticket.state.set(TICKET_WAITING);
+				return;
+			}
+		}
+
+		ticket.state.set(TICKET_MATCHED);
+		matched(other, ticket);
+	}
+
+	/**
+	 * Takes the oldest waiting player of a bucket.
+	 * Must be called while holding the bucket's lock.
+	 * @param bucket the bucket
+	 * @param searcher the ticket searching for an opponent, skipped
+	 * @return the opponent's ticket, or null
+	 */
+	private Ticket take(ArrayDeque<Ticket> bucket, Ticket searcher) {
+		Iterator<Ticket> it = bucket.iterator();
+		while(it.hasNext()) {
+			Ticket t = it.next();
+			if(t != searcher && t.state.compareAndSet(TICKET_WAITING, TICKET_MATCHED)) {
+				it.remove();
+				depth.decrementAndGet();
+				return t;
+			}
+		}
+		return null;
+	}
+
+	private Ticket take(int b, Ticket searcher) {
+		if(b < 0 || b >= buckets.length) {
+			return null;
+		}
+		synchronized(buckets[b]) {
+			return take(buckets[b], searcher);
+		}
+	}
+
+	/**
+	 * Takes a player out of the queue
+	 * @param player the player
+	 * @return false if the player was not waiting
+	 */
+	public boolean cancel(Player player) {
+		Ticket ticket = tickets.get(player);
+		if(ticket == null) {
+			return false;
+		}
+
+		while(true) {
+			int state = ticket.state.get();
+			if(state == TICKET_WAITING) {
+				if(ticket.state.compareAndSet(TICKET_WAITING, TICKET_CANCELLED)) {
+					break;
+				}
+			} else if(state == TICKET_SEARCHING) {
+				// only for the time of a search, which holds a single lock
+				Thread.yield();
+			} else {
+				return false;
+			}
+		}
+
+		dequeue(ticket);
+		tickets.remove(player, ticket);
+		return true;
+	}
+
+	/**
+	 * Removes a ticket from its bucket, if it is still there
+	 */
+	private void dequeue(Ticket ticket) {
+		ArrayDeque<Ticket> bucket = buckets[ticket.bucket];
+		synchronized(bucket) {
+			if(bucket.remove(ticket)) {
+				depth.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Searches an opponent for every waiting player, as far as its wait allows
+	 */
+	private void widen() {
+		if(depth.get() < 2) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		for(ArrayDeque<Ticket> bucket: buckets) {
+			Ticket[] waiting;
+			synchronized(bucket) {
+				if(bucket.isEmpty()) {
+					continue;
+				}
+				waiting = bucket.toArray(new Ticket[bucket.size()]);
+			}
+
+			for(Ticket ticket: waiting) {
+				search(ticket, ticket.getWiden(now));
+			}
+		}
+	}
+
+	/**
+	 * Searches an opponent for a waiting player, from its own bucket outwards
+	 * @param ticket the player's ticket
+	 * @param widen the number of buckets searched on each side
+	 */
+	private void search(Ticket ticket, int widen) {
+		if(!ticket.state.compareAndSet(TICKET_WAITING, TICKET_SEARCHING)) {
+			return;
+		}
+
+		Ticket other = null;
+		for(int d = 0; d <= widen && other == null; d++) {
+			other = take(ticket.bucket - d, ticket);
+			if(other == null && d > 0) {
+				other = take(ticket.bucket + d, ticket);
+			}
+		}
+
+		if(other == null) {
+			ticket.state.set(TICKET_WAITING);
+			return;
+		}
+
+		ticket.state.set(TICKET_MATCHED);
+		dequeue(ticket);
+		if(ticket.queuedAt <= other.queuedAt) {
+			matched(ticket, other);
+		} else {
+			matched(other, ticket);
+		}
+	}
+
+	/**
+	 * Pairs two players taken out of the queue
+	 * @param first the player who has waited first
+	 * @param second the other player
+	 */
+	private void matched(Ticket first, Ticket second) {
+		tickets.remove(first.player, first);
+		tickets.remove(second.player, second);
+
+		long now = System.nanoTime();
+		recordWait(now - first.queuedAt);
+		recordWait(now - second.queuedAt);
+
+		pair(first.player, second.player);
+	}
+
+	private void recordWait(long nanos) {
+		long step = TimeUnit.NANOSECONDS.toMillis(nanos) / HISTOGRAM_STEP;
+		waitTimes.incrementAndGet((int) Math.min(HISTOGRAM_SIZE - 1, step));
+	}
+
+	/**
+	 * @return the number of players waiting for an opponent
+	 */
+	public int getQueueDepth() {
+		return depth.get();
+	}
+
+	/**
+	 * @return the number of matches started so far
+	 */
+	public int getMatchCount() {
+		return matches.get();
+	}
+
+	/**
+	 * Logs the queue depth and the wait time percentiles since the last call,
+	 * if any player has queued meanwhile
+	 */
+	private void logStats() {
+		int[] counts = new int[HISTOGRAM_SIZE];
+		long total = 0;
+		for(int i = 0; i < HISTOGRAM_SIZE; i++) {
+			counts[i] = waitTimes.getAndSet(i, 0);
+			total += counts[i];
+		}
+
+		int queued = depth.get();
+		if(total == 0 && queued == 0) {
+			return;
+		}
+
+		if(total == 0) {
+			System.out.println("Matchmaker: " + queued + " waiting, none paired");
+			return;
+		}
+
+		System.out.println("Matchmaker: " + queued + " waiting, " + total + " paired, wait p50 "
+				+ percentile(counts, total, 0.5) + " ms, p90 " + percentile(counts, total, 0.9)
+				+ " ms, p99 " + percentile(counts, total, 0.99) + " ms");
+	}
+
+	/**
+	 * @return the upper bound of the histogram step holding the percentile, in milliseconds
+	 */
+	private static long percentile(int[] counts, long total, double p) {
+		long rank = Math.max(1, (long) Math.ceil(total * p));
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen >= rank) {
+				return (i + 1) * (long) HISTOGRAM_STEP;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Updates the ratings of the players of a finished quick match (Elo)
+	 * @param player1 the first player
+	 * @param player2 the second player
+	 * @param winner the winner of the match: 0 - draw, 1 - player 1, 2 - player 2
+	 */
+	static void rate(Player player1, Player player2, int winner) {
+		int r1 = player1.getRating();
+		int r2 = player2.getRating();
+
+		double expected = 1 / (1 + Math.pow(10, (r2 - r1) / 400.0));
+		double score = winner == 1 ? 1 : winner == 2 ? 0 : 0.5;
+		int delta = (int) Math.round(RATING_K * (score - expected));
+
+		player1.setRating(Math.max(0, Math.min(MAX_RATING, r1 + delta)));
+		player2.setRating(Math.max(0, Math.min(MAX_RATING, r2 - delta)));
+	}
+
+	/**
+	 * Seats two players in a quick-match room, from the room's mailbox
+	 */
+	private void pair(final Player player1, final Player player2) {
+		final GameRoom room = acquireRoom();
+		Server.getInstance().addRoom(room, false);
+
+		room.execute(new Runnable() {
+			@Override
+			public void run() {
+				// either player may have left, or joined a room, meanwhile
+				boolean free1 = player1.isConnected() && player1.claimRoom(room.getId());
+				boolean free2 = player2.isConnected() && player2.claimRoom(room.getId());
+				if(!free1 || !free2) {
+					if(free1) {
+						player1.setConnectedRoom(Player.NO_ROOM);
+						enqueue(player1);
+					}
+					if(free2) {
+						player2.setConnectedRoom(Player.NO_ROOM);
+						enqueue(player2);
+					}
+					if(Server.getInstance().removeRoom(room)) {
+						recycle(room);
+					}
+					return;
+				}
+
+				room.seat(player1, player2);
+				sendMatchFound(player1, room, 1, player2);
+				sendMatchFound(player2, room, 2, player1);
+				matches.incrementAndGet();
+
+				try {
+					room.startGame();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	private void sendMatchFound(Player player, GameRoom room, int number, Player opponent) {
+		player.getConnection().moveTo(room.getShard());
+
+		ByteBuffer bb = BufferPool.HEAP.acquire();
+		bb.putInt(Server.PLAYER_QUICK_MATCH_FOUND).putInt(room.getId()).putInt(number);
+		bb.putInt(opponent.getId());
+		StringUtils.putName(bb, opponent.getName());
+		bb.putInt(opponent.getRating());
+		player.sendResponse(bb);
+		BufferPool.HEAP.release(bb);
+	}
+
+	private GameRoom acquireRoom() {
+		GameRoom room = pool.poll();
+		if(room == null) {
+			return new GameRoom();
+		}
+		pooled.decrementAndGet();
+		return room;
+	}
+
+	/**
+	 * Gives a dissolved quick-match room back to the pool.
+	 * Called from the room's mailbox, once the room has been unregistered.
+	 * @param room the room
+	 */
+	void recycle(GameRoom room) {
+		room.reset();
+		if(pooled.incrementAndGet() <= POOL_LIMIT) {
+			pool.add(room);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+}
@@ -1,9 +1,14 @@
 package server;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.io.*;
 
+import util.BufferPool;
+import util.FrameDecoder;
+import util.FrameUtils;
+import util.SharedFrame;
 import util.StringUtils;
 
 /**
@@ -16,19 +21,70 @@ import util.StringUtils;
 public class Player implements Callable<Void> {
 	public static final int NO_ROOM = -1;
 	
-	private Socket connection;
+	/**
+	 * The correlation id of a request that has none
+	 */
+	public static final int NO_CORRELATION = 0;
+	
+	// the messages of the failure replies, encoded once
+	private static final byte[] MESSAGE_UNKNOWN = StringUtils.toMessage("Unknown command!");
+	private static final byte[] MESSAGE_MALFORMED = StringUtils.toMessage("Malformed command!");
+	private static final byte[] MESSAGE_PLAYER_NOT_FOUND = StringUtils.toMessage("Player not found!");
+	private static final byte[] MESSAGE_ROOM_NOT_FOUND = StringUtils.toMessage("Room not found!");
+	private static final byte[] MESSAGE_IN_ANOTHER_ROOM = StringUtils.toMessage("Player has been connected to another room!");
+	
+	private Connection connection;
 	
-	private DataOutputStream os;
+	/**
+	 * Only used by the blocking transport
+	 */
 	private DataInputStream is;
 	
 	private String name;
 	private int id;
 	
-	private boolean ready;
+	/**
+	 * Changed from the mailbox of the player's room, see {@link GameRoom}
+	 */
+	private volatile boolean ready;
 	
-	private boolean connected = false;
+	private volatile boolean connected = false;
 	
-	private int connectedRoom;
+	/**
+	 * The player's rating, see {@link Matchmaker#rate(Player, Player, int)}
+	 */
+	private volatile int rating;
+	
+	/**
+	 * The framing used with the client, see {@link FrameUtils}. Set by the
+	 * connection's thread, read by every thread sending to the player.
+	 */
+	private volatile int protocolVersion;
+	
+	/**
+	 * Cuts the bytes sent by the client into packets
+	 */
+	private FrameDecoder decoder;
+	
+	/**
+	 * Changed from the mailbox of the player's room, see {@link GameRoom}.
+	 * A room is entered with {@link #claimRoom(int)}.
+	 */
+	private volatile int connectedRoom;
+	
+	private static final AtomicIntegerFieldUpdater<Player> CONNECTED_ROOM =
+			AtomicIntegerFieldUpdater.newUpdater(Player.class, "connectedRoom");
+	
+	/**
+	 * The room the player has asked to join, until it has joined it. The requests
+	 * sent right after the join go to that room's mailbox, behind the join.
+	 */
+	private volatile GameRoom joining;
+	
+	/**
+	 * The correlation id of the request being handled
+	 */
+	private int correlation;
 	
 	public static Player build() {
 		return new Player();
@@ -48,18 +104,25 @@ public class Player implements Callable<Void> {
 	private void initialize() {
 		id = -1;
 		connectedRoom = NO_ROOM;
+		rating = Matchmaker.INITIAL_RATING;
 		ready = false;
 		connected = true;
+		protocolVersion = FrameUtils.VERSION_LEGACY;
 	}
 
 	public void setConnection(Socket conn) throws IOException {
-		this.connection = conn;
+		StreamConnection streamConnection = new StreamConnection(conn, this);
+		is = streamConnection.getInputStream();
 		
-		os = new DataOutputStream(conn.getOutputStream());
-		is = new DataInputStream(conn.getInputStream());
+		setConnection(streamConnection);
+	}
+	
+	public void setConnection(Connection conn) {
+		this.connection = conn;
+		decoder = new FrameDecoder(FrameUtils.MAX_REQUEST_SIZE, conn.getBufferPool().isDirect());
 		
 		System.out.println("New client connected");
-		System.out.println("from " + conn.getRemoteSocketAddress().toString());
+		System.out.println("from " + conn.getRemoteAddress());
 	}
 	
 	public Player connection(Socket conn) throws IOException {
@@ -67,10 +130,29 @@ public class Player implements Callable<Void> {
 		return this;
 	}
 	
-	public Socket getConnection() {
+	public Player connection(Connection conn) {
+		setConnection(conn);
+		return this;
+	}
+	
+	public Connection getConnection() {
 		return connection;
 	}
 	
+	/**
+	 * @return the number of bytes waiting to be written to this player
+	 */
+	public int getQueueDepth() {
+		return connection.getQueuedBytes();
+	}
+	
+	/**
+	 * @return true if this player does not read its packets fast enough
+	 */
+	public boolean isLagging() {
+		return connection.isLagging();
+	}
+	
 	public void setId(int id) {
 		this.id = id;
 	}
@@ -101,6 +183,18 @@ public class Player implements Callable<Void> {
 		return this;
 	}
 	
+	public int getRating() {
+		return rating;
+	}
+	
+	void setRating(int rating) {
+		this.rating = rating;
+	}
+	
+	public boolean isConnected() {
+		return connected;
+	}
+	
 	public String getName() {
 		return name;
 	}
@@ -108,30 +202,82 @@ public class Player implements Callable<Void> {
 	@Override
 	public Void call() throws Exception {
 		System.out.println(Thread.currentThread().getName() + " started.");
-		while(connected) {
-			handleCommand();
+		try {
+			while(connected) {
+				handleCommand();
+			}
+		} catch (IOException e) {
+			if(connected) {
+				e.printStackTrace();
+			}
+			disconnect();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			disconnect();
 		}
 		System.out.println("end.");
 		return null;
 	}
 	
 	/**
-	 * Read the data sent by the client
-	 * Buffer structure:
-	 * 		[4 byte -- Packet code][1020 byte -- Data]
-	 * @param connection
+	 * Read the data sent by the client, when using the blocking transport.
+	 * Every complete packet that has been read is handled, see {@link FrameDecoder}.
 	 * @throws IOException
 	 */
-	public synchronized void handleCommand() throws IOException {
-		byte[] buffer = new byte[1024];
+	public void handleCommand() throws IOException {
+		if(decoder.readFrom(is) == -1) {
+			disconnect();
+			return;
+		}
+		
+		ByteBuffer frame;
+		while(connected && (frame = decoder.nextFrame()) != null) {
+			handleCommand(frame);
+		}
+	}
 	
-		is.read(buffer);
+	/**
+	 * Handles a packet sent by the client.
+	 * 
+	 * A request may carry a correlation id, so that the client can send several
+	 * requests without waiting for their replies:
+	 * 		[4 byte -- packet code | {@link Server#CORRELATION_FLAG}][4 byte -- correlation id][rest of the request]
+	 * Every reply to the request then carries the same id, in the same way; see
+	 * {@link #sendReply(ByteBuffer, int)}. The updates pushed to the other players
+	 * of a room, and the {@link Server#LOBBY_UPDATE} packets, carry no id. A request ignored by the server still gets no reply.
+	 * The id 0 stands for no id.
+	 * @param bb the packet, positioned at its start
+	 * @throws IOException
+	 */
+	public synchronized void handleCommand(ByteBuffer bb) throws IOException {
+		correlation = NO_CORRELATION;
+		if(bb.remaining() < 4) {
+			// not even a code: the client does not speak the protocol
+			disconnect();
+			return;
+		}
 		
-		ByteBuffer bb = ByteBuffer.wrap(buffer);
 		int code = bb.getInt();
+		if((code & Server.CORRELATION_FLAG) != 0) {
+			if(bb.remaining() < 4) {
+				disconnect();
+				return;
+			}
+			code &= ~Server.CORRELATION_FLAG;
+			correlation = bb.getInt();
+		}
+		
+		// the compact framing does not pad the packets
+		int length = getRequestLength(code);
+		if(length >= 0 && bb.remaining() < length) {
+			sendUnknownCommand(code, MESSAGE_MALFORMED);
+			return;
+		}
 		
-		System.out.println("Get code: " + code);
 		switch(code) {
+		case Server.PROTOCOL_HELLO:
+			negotiateProtocol(bb);
+			break;
 		case Server.PLAYER_NAME_SET:
 			setPlayerName(bb);
 			break;
@@ -145,9 +291,23 @@ public class Player implements Callable<Void> {
 			addPlayerToRoom(bb);
 			break;
 		case Server.PLAYER_QUERY_ROOM:
-			System.out.println("Sending room list to " + connection.getLocalAddress());
 			sendRoomList();
 			break;
+		case Server.PLAYER_QUERY_ROOM_PAGE:
+			sendRoomPages(bb);
+			break;
+		case Server.PLAYER_SUBSCRIBE_LOBBY:
+			Server.getInstance().lobby.subscribe(this, correlation);
+			break;
+		case Server.PLAYER_UNSUBSCRIBE_LOBBY:
+			Server.getInstance().lobby.unsubscribe(this);
+			break;
+		case Server.PLAYER_QUICK_MATCH:
+			quickMatch();
+			break;
+		case Server.PLAYER_QUICK_MATCH_CANCEL:
+			Server.getInstance().matchmaker.cancel(this);
+			break;
 		case Server.PLAYER_DISCONNECT:
 			disconnect();
 			break;
@@ -156,9 +316,13 @@ public class Player implements Callable<Void> {
 			GameRoom target = Server.getInstance().rooms.get(roomId);
 			
 			if(target != null) {
-				target.queryPlayers(connection);
+				queryPlayers(target);
 			} else {
-				// prepare error statement here
+				// an empty list
+				ByteBuffer bbout = BufferPool.HEAP.acquire();
+				bbout.putInt(Server.ROOM_PLAYER_INFO_END).putInt(roomId).putInt(0);
+				sendReply(bbout, correlation);
+				BufferPool.HEAP.release(bbout);
 			}
 			
 			break;
@@ -168,97 +332,283 @@ public class Player implements Callable<Void> {
 		case Server.ROOM_GAME_START:
 			startGame(bb);
 			break;
+		case Server.GAME_UPDATE_SELECTION:
+			updateSelection(bb);
+			break;
+		default:
+			sendUnknownCommand(code, MESSAGE_UNKNOWN);
+		}
+	}
+	
+	/**
+	 * Gets the length a request must have after its code (and correlation id),
+	 * so that its handler does not read past the packet
+	 * @param code the request's code
+	 * @return the length, or -1 for an unknown code
+	 */
+	private static int getRequestLength(int code) {
+		switch(code) {
+		case Server.PLAYER_NAME_SET:
+		case Server.PLAYER_QUERY_ROOM:
+		case Server.PLAYER_SUBSCRIBE_LOBBY:
+		case Server.PLAYER_UNSUBSCRIBE_LOBBY:
+		case Server.PLAYER_QUICK_MATCH:
+		case Server.PLAYER_QUICK_MATCH_CANCEL:
+		case Server.PLAYER_DISCONNECT:
+			// a short name is read as is
+			return 0;
+		case Server.PROTOCOL_HELLO:
+		case Server.PLAYER_CREATE_ROOM:
+		case Server.ROOM_QUERY_PLAYERS:
+		case Server.ROOM_PLAYER_READY:
+			return 4;
+		case Server.PLAYER_DESTROY_ROOM:
+		case Server.PLAYER_JOIN_ROOM:
+		case Server.PLAYER_QUERY_ROOM_PAGE:
+		case Server.ROOM_GAME_START:
+		case Server.GAME_UPDATE_SELECTION:
+			return 8;
 		default:
-			os.write("Unknown command!".getBytes());
-			os.flush();
+			return -1;
 		}
 	}
+	
+	/**
+	 * Tells the client a request has not been understood
+	 * 
+	 * Packet structure:
+	 * 		[4 byte -- packet code][4 byte -- code of the request][128 byte -- message]
+	 */
+	private void sendUnknownCommand(int code, byte[] message) {
+		ByteBuffer bbout = BufferPool.HEAP.acquire();
+		bbout.putInt(Server.UNKNOWN_COMMAND).putInt(code);
+		
+		bbout.put(message);
+		
+		sendReply(bbout, correlation);
+		BufferPool.HEAP.release(bbout);
+	}
 
 	/**
-	 * Disconnects the player from the {@link Server}
-	 * @param id
+	 * Selects the framing used for the rest of the connection.
+	 * The reply is still sent with the framing used so far.
+	 * @param bb
+	 * 			ByteBuffer, with this structure:
+	 * 			[4 byte -- packet code][4 byte -- highest version known by the client]
 	 * @throws IOException
 	 */
-	private void disconnect() throws IOException {
-		connection.close();
+	private void negotiateProtocol(ByteBuffer bb) throws IOException {
+		int version = Math.max(FrameUtils.VERSION_LEGACY,
+				Math.min(bb.getInt(), FrameUtils.CURRENT_VERSION));
+		
+		ByteBuffer bbout = BufferPool.HEAP.acquire();
+		bbout.putInt(Server.PROTOCOL_ACCEPT).putInt(version);
+		
+		sendReply(bbout, correlation);
+		BufferPool.HEAP.release(bbout);
+		
+		protocolVersion = version;
+		decoder.setVersion(version);
+	}
+	
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+	
+	public FrameDecoder getDecoder() {
+		return decoder;
+	}
+	
+	/**
+	 * Disconnects the player from the {@link Server}.
+	 * Also called by the transport when the client has closed the connection.
+	 */
+	synchronized void disconnect() {
+		if(!connected) {
+			return;
+		}
+		connected = false;
+		
+		try {
+			connection.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 		
 		Server server = Server.getInstance();
+		server.lobby.unsubscribe(this);
+		server.matchmaker.cancel(this);
 		
 		if(connectedRoom != NO_ROOM) {
 			GameRoom room = server.rooms.get(connectedRoom);
-			room.destroy();
-			server.rooms.remove(connectedRoom);
+			if(room != null && server.removeRoom(room)) {
+				destroyRoom(room);
+			}
 		}
 		
 		server.players.remove(id);
 	}
 	
 	/**
-	 * Add a certain player to a {@link GameRoom}
+	 * Destroys a room that has been removed from the server, from the room's mailbox
+	 * @param room the room
+	 */
+	private static void destroyRoom(GameRoom room) {
+		destroyRoom(room, null, NO_CORRELATION);
+	}
+	
+	/**
+	 * Destroys a room that has been removed from the server, from the room's mailbox
+	 * @param room the room
+	 * @param requester the player who asked for it, null if none
+	 * @param correlation the correlation id of the request
+	 */
+	private static void destroyRoom(final GameRoom room, final Player requester, final int correlation) {
+		room.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					room.destroy(requester, correlation);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Add a certain player to a {@link GameRoom}.
+	 * The player joins from the room's mailbox, which also sends the response.
 	 * @param bb
 	 * 			ByteBuffer, with this structure:
-	 * 			[4 byte -- packet code][4 byte -- GameRoom id]
-	 * @param connection
-	 * 			Socket connection to {@link Player}
+	 * 			[4 byte -- packet code][4 byte -- player id][4 byte -- GameRoom id]
 	 */
-	private synchronized void addPlayerToRoom(ByteBuffer bb) 
-	throws IOException 
-	{
+	private void addPlayerToRoom(ByteBuffer bb) {
 		// 1. check if the player exists
-		// 2. check if the player has not connected to any room
-		// 3. check if the room exists
+		// 2. check if the room exists
+		// 3. check if the player has not connected to any room (from the room's mailbox)
 		// 4. connect the player if all of the conditions above are met.
 		
-		ByteBuffer bbout = ByteBuffer.allocate(1024);
-		
 		int playerId = bb.getInt();
 		System.out.println("Got request from player " + playerId);
-		Player target = Server.getInstance().players.get(playerId);
-		if(target != null) {
-			if(target.getConnectedRoom() == Player.NO_ROOM) {
-				GameRoom room = Server.getInstance().rooms.get(bb.getInt());
+		final Player target = Server.getInstance().players.get(playerId);
+		if(target == null) {
+			sendJoinRoomFail(MESSAGE_PLAYER_NOT_FOUND, correlation);
+			return;
+		}
+		
+		final GameRoom room = Server.getInstance().rooms.get(bb.getInt());
+		if(room == null) {
+			sendJoinRoomFail(MESSAGE_ROOM_NOT_FOUND, correlation);
+			return;
+		}
+		
+		final int correlation = this.correlation;
+		target.joining = room;
+		room.execute(new Runnable() {
+			@Override
+			public void run() {
+				if(target.joining == room) {
+					target.joining = null;
+				}
 				
-				if(room != null) {
-					// do something here
-					room.addPlayer(target);
-					target.setConnectedRoom(room.getId());
+				if(room.isDestroyed() || room.isQuickMatch()) {
+					sendJoinRoomFail(MESSAGE_ROOM_NOT_FOUND, correlation);
+				} else if(!target.claimRoom(room.getId())) {
+					sendJoinRoomFail(MESSAGE_IN_ANOTHER_ROOM, correlation);
+				} else {
+					try {
+						room.addPlayer(target);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					target.getConnection().moveTo(room.getShard());
 					
 					// prepare confirm statement here
+					ByteBuffer bbout = BufferPool.HEAP.acquire();
 					bbout.putInt(Server.PLAYER_JOIN_ROOM_SUCCESS);
-				} else {
-					// prepare error statement here
-					bbout.putInt(Server.PLAYER_JOIN_ROOM_FAIL);
-					
-					byte[] message = "Room not found!".getBytes();
-					for(int i = 0; i < StringUtils.MESSAGE_MAXLENGTH; i++) {
-						bbout.put(i < message.length ? message[i] : 0x00);
-					}
-				}
-			} else {
-				// prepare error statement here
-				bbout.putInt(Server.PLAYER_JOIN_ROOM_FAIL);
-				
-				byte[] message = "Player has been connected to another room!".getBytes();
-				for(int i = 0; i < StringUtils.MESSAGE_MAXLENGTH; i++) {
-					bbout.put(i < message.length ? message[i] : 0x00);
+					sendReply(bbout, correlation);
+					BufferPool.HEAP.release(bbout);
 				}
 			}
-		} else {
-			// prepare error statement heretime
-			bbout.putInt(Server.PLAYER_JOIN_ROOM_FAIL);
+		});
+	}
+	
+	/**
+	 * Puts this player in the quick-match queue, see {@link Matchmaker}.
+	 * The player is told once it has been paired.
+	 * 
+	 * Packet structure:
+	 * 		[4 byte -- packet code]
+	 */
+	private void quickMatch() {
+		if(connectedRoom != NO_ROOM) {
+			ByteBuffer bbout = BufferPool.HEAP.acquire();
+			bbout.putInt(Server.PLAYER_QUICK_MATCH_FAIL);
 			
-			byte[] message = "Player not found!".getBytes();
-			for(int i = 0; i < StringUtils.MESSAGE_MAXLENGTH; i++) {
-				bbout.put(i < message.length ? message[i] : 0x00);
-			}
+			bbout.put(MESSAGE_IN_ANOTHER_ROOM);
+			
+			sendReply(bbout, correlation);
+			BufferPool.HEAP.release(bbout);
+			return;
 		}
 		
-		sendResponse(bbout.array());
+		Server.getInstance().matchmaker.enqueue(this);
+	}
+	
+	private void sendJoinRoomFail(byte[] message, int correlation) {
+		ByteBuffer bbout = BufferPool.HEAP.acquire();
+		bbout.putInt(Server.PLAYER_JOIN_ROOM_FAIL);
+		
+		bbout.put(message);
+		
+		sendReply(bbout, correlation);
+		BufferPool.HEAP.release(bbout);
 	}
 
-	private void sendResponse(byte[] array) throws IOException {
-		os.write(array);
-		os.flush();
+	/**
+	 * Sends a packet to this player's client, framed with the negotiated protocol version
+	 * @param bb the packet, written from index 0 up to its position
+	 */
+	public void sendResponse(ByteBuffer bb) {
+		SharedFrame frame = SharedFrame.encode(bb, protocolVersion, connection.getBufferPool());
+		connection.write(frame);
+		frame.release();
+	}
+	
+	/**
+	 * Sends the reply to a request of this player, carrying the request's correlation id:
+	 * 		[4 byte -- packet code | {@link Server#CORRELATION_FLAG}][4 byte -- correlation id][rest of the packet]
+	 * @param bb the packet, written from index 0 up to its position
+	 * @param correlation the request's correlation id, {@link #NO_CORRELATION} to send the packet as is
+	 */
+	public void sendReply(ByteBuffer bb, int correlation) {
+		SharedFrame frame = encodeReply(bb, correlation, protocolVersion, connection.getBufferPool());
+		connection.write(frame);
+		frame.release();
+	}
+	
+	/**
+	 * Encodes a reply, see {@link #sendReply(ByteBuffer, int)}
+	 * @param bb the packet, written from index 0 up to its position
+	 * @param correlation the request's correlation id, {@link #NO_CORRELATION} to encode the packet as is
+	 * @param protocolVersion the framing version
+	 * @param pool the pool the frame is taken from
+	 * @return the frame, to be released by the caller
+	 */
+	static SharedFrame encodeReply(ByteBuffer bb, int correlation, int protocolVersion, BufferPool pool) {
+		if(correlation == NO_CORRELATION) {
+			return SharedFrame.encode(bb, protocolVersion, pool);
+		}
+		
+		ByteBuffer rest = bb.duplicate();
+		rest.limit(bb.position()).position(4);
+		
+		ByteBuffer tagged = BufferPool.HEAP.acquire(bb.position() + 4);
+		tagged.putInt(bb.getInt(0) | Server.CORRELATION_FLAG).putInt(correlation).put(rest);
+		SharedFrame frame = SharedFrame.encode(tagged, protocolVersion, pool);
+		BufferPool.HEAP.release(tagged);
+		return frame;
 	}
 
 	/**
@@ -270,15 +620,16 @@ public class Player implements Callable<Void> {
 	 * @throws IOException
 	 */
 	private synchronized void setPlayerName(ByteBuffer bb) throws IOException {
-		name = new String(bb.array(), 4, StringUtils.NAME_MAXLENGTH);
+		name = StringUtils.getName(bb);
 		
 		System.out.println("Received player name: " + name);
 		// prepare the response
-		ByteBuffer bbout = ByteBuffer.allocate(1024);
+		ByteBuffer bbout = BufferPool.HEAP.acquire();
 		
 		bbout.putInt(Server.PLAYER_REGISTERED).putInt(id);
 		
-		sendResponse(bbout.array());
+		sendReply(bbout, correlation);
+		BufferPool.HEAP.release(bbout);
 	}
 	
 	/**
@@ -300,29 +651,50 @@ public class Player implements Callable<Void> {
 	 * @throws IOException
 	 */
 	private void addRoom(ByteBuffer bb) throws IOException {
-		assert(bb.position() == 4);
+		assert(bb.position() == (correlation == NO_CORRELATION ? 4 : 8));
 		Integer masterId = bb.getInt();
 		String name = StringUtils.getName(bb);
 		
+		// the master is the first player of the room, unless it is in another room.
+		// It takes its seat before the room is listed, so nobody sees a room that fails.
+		Server server = Server.getInstance();
+		Player master = server.getPlayer(masterId);
+		int roomId = server.rooms.nextId();
+		if(master == null || !master.claimRoom(roomId)) {
+			server.rooms.discard(roomId);
+			
+			ByteBuffer bbout = BufferPool.HEAP.acquire();
+			bbout.putInt(Server.PLAYER_CREATE_ROOM_FAIL);
+			
+			bbout.put(MESSAGE_IN_ANOTHER_ROOM);
+			
+			sendReply(bbout, correlation);
+			BufferPool.HEAP.release(bbout);
+			return;
+		}
+		
 		// create the room
 		GameRoom room = new GameRoom(masterId, name);
-		room.setId(Server.roomId);
+		server.addRoom(room, roomId, true);
 		
-		Server.getInstance().rooms.put(Server.roomId, room);
+		// a master leaving meanwhile did not find the room to destroy it
+		if(!master.isConnected() && server.removeRoom(room)) {
+			destroyRoom(room);
+		}
+		master.getConnection().moveTo(room.getShard());
 		
 		System.out.println("Created new room");
-		System.out.println("ID: " + Server.roomId);
+		System.out.println("ID: " + roomId);
 		System.out.println("Master ID: " + masterId);
 		System.out.println("Name: " + room.getName());
 		
 		// prepare the response
-		ByteBuffer bbout = ByteBuffer.allocate(1024);
+		ByteBuffer bbout = BufferPool.HEAP.acquire();
 			
-		bbout.putInt(Server.PLAYER_CREATE_ROOM_SUCCESS).putInt(Server.roomId);
-		
-		sendResponse(bbout.array());
+		bbout.putInt(Server.PLAYER_CREATE_ROOM_SUCCESS).putInt(roomId);
 		
-		Server.roomId++;
+		sendReply(bbout, correlation);
+		BufferPool.HEAP.release(bbout);
 	}
 	
 	/**
@@ -334,15 +706,16 @@ public class Player implements Callable<Void> {
 	 * 			Socket connection to {@link Player}
 	 */
 	private void deleteRoom(ByteBuffer bb) throws IOException {
-		assert(bb.position() == 4);
+		assert(bb.position() == (correlation == NO_CORRELATION ? 4 : 8));
 		GameRoom target = Server.getInstance().rooms.get(bb.getInt());
 		
 		if(target != null) {
 			Player master = Server.getInstance().players.get(bb.getInt());
 			if(master != null) {
-				if(master.getConnectedRoom() == target.getMasterId()) {
-					target.destroy();
-					Server.getInstance().rooms.remove(target.getId());
+				if(master.getId() == target.getMasterId()) {
+					if(Server.getInstance().removeRoom(target)) {
+						destroyRoom(target, master, correlation);
+					}
 				} else {
 					// prepare error statement
 				}
@@ -355,40 +728,65 @@ public class Player implements Callable<Void> {
 	}
 	
 	/**
-	 * Sends the GameRoom list to the Client
+	 * Sends the GameRoom list to the Client, one packet per room,
+	 * followed by {@link Server#PLAYER_ROOM_LIST_END}, see {@link RoomDirectory.Snapshot#writeEnd(ByteBuffer, int)}
+	 * The packets are written as the connection drains, see {@link Connection#writePaced(Connection.FrameSource)}
 	 * Struktur data:
 	 * 			[4 byte -- kode header][4 byte -- ID room][32 byte -- nama room]
 	 * 			[4 byte -- no. of connected players][4 byte -- room master's id]
 	 * 			[4 byte -- room state][else -- null]
-	 * @param connection koneksi ke Client
 	 * @throws IOException 
 	 */
 	private void sendRoomList() throws IOException {
-		ByteBuffer bb = ByteBuffer.allocate(1024);
-		for(int i = 0; i < Server.roomId; i++) {
-			GameRoom room = Server.getInstance().rooms.get(i);
-			
-			// GameRoom exists
-			if(room != null) {
-				System.out.println("Sending room " + room.getId() + " info");
-				bb.putInt(Server.PLAYER_ROOM_INFO);
-				bb.putInt(room.getId());
-				
-				byte[] name = room.getName().getBytes();
-				for(int j = 0; j < StringUtils.NAME_MAXLENGTH; j++) {
-					bb.put(j < name.length ? name[j] : 0x00); 
-				}
-				
-				bb.putInt(room.getPlayerCount());
-				bb.putInt(room.getMasterId());
-				bb.putInt(room.getState());
-				
-				os.write(bb.array());
-				os.flush();
-				
-				System.out.println("Room " + room.getId() + " sent");
-				bb.clear();
+		RoomDirectory.Snapshot snapshot = Server.getInstance().directory.acquire();
+		try {
+			connection.writePaced(snapshot.list(0, snapshot.getCount(), false,
+					protocolVersion, correlation, connection.getBufferPool()));
+		} finally {
+			snapshot.release();
+		}
+	}
+	
+	/**
+	 * Sends the GameRoom list to the Client, packing as many rooms as a packet holds.
+	 * The list is served from the {@link RoomDirectory}: the pages are
+	 * {@link Server#PLAYER_ROOM_PAGE} packets, see {@link RoomDirectory.Snapshot#writePage(ByteBuffer, int, int)},
+	 * followed by a {@link Server#PLAYER_ROOM_LIST_END} packet. The packets are
+	 * written as the connection drains, see {@link Connection#writePaced(Connection.FrameSource)}
+	 * 
+	 * A client that already holds the current version of the list gets a
+	 * {@link Server#PLAYER_ROOM_NOT_MODIFIED} packet instead:
+	 * 			[4 byte -- kode header][4 byte -- list version][4 byte -- total no. of rooms]
+	 * 
+	 * The cursor is the number of rooms already listed. Rooms created or destroyed
+	 * between two requests may shift the list; the version tells whether it has changed.
+	 * @param bb
+	 * 			ByteBuffer, with this structure:
+	 * 			[4 byte -- packet code][4 byte -- cursor][4 byte -- max. no. of rooms, 0 for all]
+	 * 			[4 byte -- list version held by the client, 0 for none]
+	 * @throws IOException
+	 */
+	private void sendRoomPages(ByteBuffer bb) throws IOException {
+		int cursor = Math.max(0, bb.getInt());
+		int maxRooms = bb.getInt();
+		int knownVersion = bb.remaining() >= 4 ? bb.getInt() : 0;
+		
+		RoomDirectory.Snapshot snapshot = Server.getInstance().directory.acquire();
+		try {
+			if(cursor == 0 && knownVersion == snapshot.getVersion()) {
+				ByteBuffer bbout = BufferPool.HEAP.acquire();
+				bbout.putInt(Server.PLAYER_ROOM_NOT_MODIFIED).putInt(snapshot.getVersion())
+					.putInt(snapshot.getCount());
+				sendReply(bbout, correlation);
+				BufferPool.HEAP.release(bbout);
+			} else {
+				int end = cursor + Math.min(maxRooms <= 0 ? Integer.MAX_VALUE : maxRooms,
+						Math.max(0, snapshot.getCount() - cursor));
+				connection.writePaced(snapshot.list(cursor, end, true,
+						protocolVersion, correlation, connection.getBufferPool()));
 			}
+		} finally {
+			snapshot.release();
 		}
 	}
 	
@@ -398,21 +796,34 @@ public class Player implements Callable<Void> {
 	 * @param connection
 	 * @throws IOException
 	 */
-	private void setPlayerReady(ByteBuffer bb) throws IOException {
+	private void setPlayerReady(ByteBuffer bb) {
 		// check if the player is in the room
-		Player target = Server.getInstance().players.get(bb.getInt());
+		final Player target = Server.getInstance().players.get(bb.getInt());
 		
 		if(target != null) {
-			int roomId = target.getConnectedRoom();
+			final int roomId = target.getRequestRoom();
+			final int correlation = this.correlation;
 
 			if(roomId != Player.NO_ROOM) {
-				GameRoom room = Server.getInstance().rooms.get(roomId);
+				final GameRoom room = Server.getInstance().rooms.get(roomId);
 				
 				if(room != null) {
-					if(room.getReadyCount() < 2) {
-						room.setPlayerReady(target);
-					}
-					
+					room.execute(new Runnable() {
+						@Override
+						public void run() {
+							// the player may have left meanwhile
+							if(target.getConnectedRoom() != roomId || room.getId() != roomId
+									|| target.isReady() || room.getReadyCount() >= 2) {
+								return;
+							}
+							
+							try {
+								room.setPlayerReady(target, Player.this, correlation);
+							} catch (IOException e) {
+								e.printStackTrace();
+							}
+						}
+					});
 					
 					// NOTE: the response is handled by the above method.
 				}
@@ -425,20 +836,94 @@ public class Player implements Callable<Void> {
 	 * @param bb
 	 * @throws IOException 
 	 */
-	private void startGame(ByteBuffer bb) throws IOException {
+	private void startGame(ByteBuffer bb) {
 		int playerId = bb.getInt();
-		int roomId = bb.getInt();
+		final int roomId = bb.getInt();
 		
 		Player master = Server.getInstance().players.get(playerId);
 		if(master != null) {
-			GameRoom room = Server.getInstance().rooms.get(roomId);
+			final GameRoom room = Server.getInstance().rooms.get(roomId);
+			final int correlation = this.correlation;
 			
 			if(room != null) {
-				room.startGame();
+				room.execute(new Runnable() {
+					@Override
+					public void run() {
+						// quick-match rooms are reused under a new id
+						if(room.getId() != roomId) {
+							return;
+						}
+						
+						try {
+							room.startGame(Player.this, correlation);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				});
 			}
 		}
 	}
 
+	/**
+	 * Sets the selection of a player in the game running in its room
+	 * @param bb
+	 * 			ByteBuffer, with this structure:
+	 * 			[4 byte -- packet code][4 byte -- player id][4 byte -- selection]
+	 */
+	private void updateSelection(ByteBuffer bb) {
+		final int playerId = bb.getInt();
+		final int selection = bb.getInt();
+		
+		Player target = Server.getInstance().players.get(playerId);
+		if(target != null) {
+			final int roomId = target.getRequestRoom();
+			final GameRoom room = Server.getInstance().rooms.get(roomId);
+			final int correlation = this.correlation;
+			
+			if(room != null) {
+				room.execute(new Runnable() {
+					@Override
+					public void run() {
+						Game game = room.getGame();
+						// quick-match rooms are reused under a new id
+						if(game != null && room.getId() == roomId) {
+							game.updateSelection(playerId, selection, correlation);
+						}
+					}
+				});
+			}
+		}
+	}
+	
+	/**
+	 * Sends the players of a room to this player, from the room's mailbox
+	 * @param room the room
+	 */
+	private void queryPlayers(final GameRoom room) {
+		final int correlation = this.correlation;
+		room.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					room.queryPlayers(Player.this, correlation);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Enters a room, unless the player is already in one. Rooms on different
+	 * shards may try to take the same player; only one of them succeeds.
+	 * @param id the room's id
+	 * @return false if the player is already in a room
+	 */
+	public boolean claimRoom(int id) {
+		return CONNECTED_ROOM.compareAndSet(this, NO_ROOM, id);
+	}
+	
 	public void setConnectedRoom(int id) {
 		connectedRoom = id;
 		
@@ -448,4 +933,18 @@ public class Player implements Callable<Void> {
 	public int getConnectedRoom() {
 		return connectedRoom;
 	}
+	
+	/**
+	 * Gets the room the requests of this player go to: its room, or else the
+	 * room it is joining, so that they are handled after the join
+	 * @return the room's id, {@link #NO_ROOM} if none
+	 */
+	int getRequestRoom() {
+		int roomId = connectedRoom;
+		GameRoom room = joining;
+		if(roomId == NO_ROOM && room != null) {
+			roomId = room.getId();
+		}
+		return roomId;
+	}
 }
@@ -0,0 +1,279 @@
+package server;
+
+import java.util.*;
+
+import util.IntObjectMap;
+
+/**
+ * Thread-safe table of the {@link Player}s or {@link GameRoom}s of the {@link Server},
+ * keyed by their id.
+ *
+ * Lookups do not lock, ids are issued atomically, and the entries may be
+ * iterated while other threads add or remove entries. The entries are kept in
+ * an {@link IntObjectMap}, so the ids are never boxed.
+ *
+ * The ids are recycled, so that the tables stay as small as the number of
+ * live entries. An id is made of a slot and a generation:
+ * 		[9 bit -- generation][22 bit -- slot]
+ * When an entry is removed its slot is reused, with the next generation, so
+ * a stale id does not find the new entry (until the generation wraps around).
+ * The live entries are also kept in a dense array, so iterating them costs
+ * O(live entries), no matter how many ids have been issued before.
+ * @author alvin_nt
+ *
+ * @param <V> the type of the entries
+ */
+public class Registry<V> implements Iterable<V> {
+	private static final int SLOT_BITS = 22;
+	private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+	private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private IntObjectMap<V> entries;
+
+	private final Object lock = new Object();
+
+	/**
+	 * The generation of every slot
+	 */
+	private int[] generations;
+
+	/**
+	 * Number of slots used so far
+	 */
+	private int slotCount;
+
+	/**
+	 * Released slots, ready to be reused
+	 */
+	private int[] freeSlots;
+	private int freeCount;
+
+	/**
+	 * The live entries, packed at the start of the array
+	 */
+	private volatile Object[] dense;
+	private volatile int denseCount;
+
+	/**
+	 * The ids of the entries in the dense array, only read while holding the lock
+	 */
+	private int[] denseIds;
+
+	/**
+	 * Position of every slot's entry in the dense array
+	 */
+	private int[] denseIndex;
+
+	public Registry() {
+		entries = new IntObjectMap<>();
+
+		generations = new int[INITIAL_CAPACITY];
+		freeSlots = new int[INITIAL_CAPACITY];
+		dense = new Object[INITIAL_CAPACITY];
+		denseIds = new int[INITIAL_CAPACITY];
+		denseIndex = new int[INITIAL_CAPACITY];
+	}
+
+	private static int slot(int id) {
+		return id & SLOT_MASK;
+	}
+
+	/**
+	 * Issues a new id. The id must then be given to {@link #put(int, Object)};
+	 * it is reused after the entry has been removed.
+	 * @return the id
+	 */
+	public int nextId() {
+		synchronized(lock) {
+			int slot;
+			if(freeCount > 0) {
+				slot = freeSlots[--freeCount];
+			} else {
+				if(slotCount > SLOT_MASK) {
+					throw new IllegalStateException("No more ids available");
+				}
+
+				slot = slotCount++;
+				if(slot == generations.length) {
+					generations = Arrays.copyOf(generations, slot * 2);
+					denseIndex = Arrays.copyOf(denseIndex, slot * 2);
+				}
+			}
+
+			return (generations[slot] << SLOT_BITS) | slot;
+		}
+	}
+
+	/**
+	 * Gives back an id issued by {@link #nextId()} that has not been put
+	 * @param id the id
+	 */
+	public void discard(int id) {
+		synchronized(lock) {
+			int slot = slot(id);
+			if(entries.get(id) != null || generations[slot] != (id >>> SLOT_BITS)) {
+				throw new IllegalArgumentException("Id in use or stale: " + id);
+			}
+
+			generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+			if(freeCount == freeSlots.length) {
+				freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+			}
+			freeSlots[freeCount++] = slot;
+		}
+	}
+
+	/**
+	 * Gets an entry
+	 * @param id the entry's id
+	 * @return the entry, or null if there is no such entry
+	 */
+	public V get(int id) {
+		return id < 0 ? null : entries.get(id);
+	}
+
+	/**
+	 * Adds an entry
+	 * @param id the entry's id, issued by {@link #nextId()}
+	 * @param value the entry
+	 */
+	public void put(int id, V value) {
+		synchronized(lock) {
+			int slot = slot(id);
+			if(entries.put(id, value) != null) {
+				dense[denseIndex[slot]] = value;
+				return;
+			}
+
+			Object[] d = dense;
+			int count = denseCount;
+			if(count == d.length) {
+				d = Arrays.copyOf(d, count * 2);
+				denseIds = Arrays.copyOf(denseIds, count * 2);
+				dense = d;
+			}
+
+			d[count] = value;
+			denseIds[count] = id;
+			denseIndex[slot] = count;
+			denseCount = count + 1;
+		}
+	}
+
+	/**
+	 * Removes an entry
+	 * @param id the entry's id
+	 * @return the removed entry, or null if there was no such entry
+	 */
+	public V remove(int id) {
+		synchronized(lock) {
+			V value = entries.remove(id);
+			if(value != null) {
+				release(id);
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Removes an entry, only if the id still refers to it.
+	 * When several threads remove the same entry, only one of them succeeds.
+	 * @param id the entry's id
+	 * @param value the entry
+	 * @return true if this call has removed the entry
+	 */
+	public boolean remove(int id, V value) {
+		synchronized(lock) {
+			if(!entries.remove(id, value)) {
+				return false;
+			}
+			release(id);
+			return true;
+		}
+	}
+
+	/**
+	 * Takes a removed entry out of the dense array and frees its slot.
+	 * Must be called while holding the lock.
+	 */
+	private void release(int id) {
+		int slot = slot(id);
+
+		// move the last entry into the hole
+		Object[] d = dense;
+		int last = denseCount - 1;
+		int index = denseIndex[slot];
+
+		if(index != last) {
+			d[index] = d[last];
+			denseIds[index] = denseIds[last];
+			denseIndex[slot(denseIds[index])] = index;
+		}
+		d[last] = null;
+		denseCount = last;
+
+		generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+		if(freeCount == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+		}
+		freeSlots[freeCount++] = slot;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Iterates the entries. The iteration never fails because of concurrent
+	 * changes; entries added or removed meanwhile may or may not be seen.
+	 *
+	 * The dense array is walked from its end, so an entry moved by a concurrent
+	 * removal may be seen twice but is never skipped.
+	 */
+	@Override
+	public Iterator<V> iterator() {
+		final int count = denseCount;
+		final Object[] d = dense;
+
+		return new Iterator<V>() {
+			private int index = Math.min(count, d.length);
+			private V next = advance();
+
+			@SuppressWarnings("unchecked")
+			private V advance() {
+				while(--index >= 0) {
+					Object v = d[index];
+					if(v != null) {
+						return (V) v;
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public V next() {
+				if(next == null) {
+					throw new NoSuchElementException();
+				}
+				V v = next;
+				next = advance();
+				return v;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -0,0 +1,492 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.BufferPool;
+import util.FrameUtils;
+import util.SharedFrame;
+import util.StringUtils;
+
+/**
+ * The room list shown to the players, kept as encoded records.
+ *
+ * Every room's record (see {@link GameRoom#writeInfo(ByteBuffer)}) is encoded
+ * when the room is added or changed, never when the list is queried. Every
+ * change bumps the directory's version.
+ *
+ * Queries are served from an immutable {@link Snapshot} of the records, which
+ * is only copied again after the directory has changed. The snapshot also
+ * caches the frames of the whole list, so listing an unchanged directory only
+ * queues frames that have already been encoded. The list is written as the
+ * player's connection drains, see {@link Snapshot#list(int, int, boolean, int, int, BufferPool)}.
+ *
+ * The changes are also reported to the {@link Lobby}, which pushes them to
+ * the subscribed players.
+ * @author alvin_nt
+ *
+ */
+public class RoomDirectory {
+	/**
+	 * Size of the header of a {@link Server#PLAYER_ROOM_PAGE} packet
+	 */
+	public static final int PAGE_HEADER_SIZE = 20;
+
+	// offsets of the fields of a record
+	private static final int NAME_OFFSET = 4;
+	private static final int PLAYERS_OFFSET = NAME_OFFSET + StringUtils.NAME_MAXLENGTH;
+	private static final int MASTER_OFFSET = PLAYERS_OFFSET + 4;
+	private static final int STATE_OFFSET = MASTER_OFFSET + 4;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Object lock = new Object();
+
+	/**
+	 * The rooms' records, packed at the start of the array
+	 */
+	private byte[] records;
+
+	/**
+	 * The room of every record
+	 */
+	private GameRoom[] rooms;
+
+	private int count;
+
+	/**
+	 * The previous record of the room being updated
+	 */
+	private final byte[] previous = new byte[GameRoom.INFO_SIZE];
+
+	private volatile int version;
+
+	private volatile Snapshot snapshot;
+
+	public RoomDirectory() {
+		records = new byte[INITIAL_CAPACITY * GameRoom.INFO_SIZE];
+		rooms = new GameRoom[INITIAL_CAPACITY];
+		version = 1;
+	}
+
+	/**
+	 * Lists a room
+	 * @param room the room, already registered in {@link Server#rooms}
+	 */
+	public void add(GameRoom room) {
+		synchronized(lock) {
+			if(room.directoryIndex >= 0) {
+				return;
+			}
+
+			if(count == rooms.length) {
+				rooms = Arrays.copyOf(rooms, count * 2);
+				records = Arrays.copyOf(records, count * 2 * GameRoom.INFO_SIZE);
+			}
+
+			rooms[count] = room;
+			room.directoryIndex = count;
+			encode(count++);
+			version++;
+
+			Server.getInstance().lobby.changed(room, Lobby.ROOM_ADDED);
+		}
+	}
+
+	/**
+	 * Encodes the record of a room again, after it has changed.
+	 * Rooms that are not listed are ignored.
+	 * @param room the room
+	 */
+	public void update(GameRoom room) {
+		synchronized(lock) {
+			int index = room.directoryIndex;
+			if(index < 0) {
+				return;
+			}
+
+			int offset = index * GameRoom.INFO_SIZE;
+			System.arraycopy(records, offset, previous, 0, GameRoom.INFO_SIZE);
+			encode(index);
+
+			int flags = 0;
+			if(changed(offset, PLAYERS_OFFSET, 4)) {
+				flags |= Lobby.ROOM_PLAYERS_CHANGED;
+			}
+			if(changed(offset, STATE_OFFSET, 4)) {
+				flags |= Lobby.ROOM_STATE_CHANGED;
+			}
+			if(changed(offset, NAME_OFFSET, StringUtils.NAME_MAXLENGTH) || changed(offset, MASTER_OFFSET, 4)) {
+				flags |= Lobby.ROOM_INFO_CHANGED;
+			}
+
+			if(flags != 0) {
+				version++;
+				Server.getInstance().lobby.changed(room, flags);
+			}
+		}
+	}
+
+	/**
+	 * Compares a field of a record with its previous value.
+	 * Must be called while holding the lock.
+	 */
+	private boolean changed(int offset, int field, int length) {
+		for(int i = field; i < field + length; i++) {
+			if(records[offset + i] != previous[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes a room from the list
+	 * @param room the room
+	 */
+	public void remove(GameRoom room) {
+		synchronized(lock) {
+			int index = room.directoryIndex;
+			if(index < 0) {
+				return;
+			}
+
+			// move the last record into the hole
+			int last = count - 1;
+			if(index != last) {
+				rooms[index] = rooms[last];
+				rooms[index].directoryIndex = index;
+				System.arraycopy(records, last * GameRoom.INFO_SIZE,
+						records, index * GameRoom.INFO_SIZE, GameRoom.INFO_SIZE);
+			}
+			rooms[last] = null;
+			room.directoryIndex = -1;
+			count = last;
+			version++;
+
+			Server.getInstance().lobby.changed(room, Lobby.ROOM_REMOVED);
+		}
+	}
+
+	/**
+	 * Writes the current record of a room
+	 * @param room the room
+	 * @param bb the target buffer
+	 * @return false if the room is not listed
+	 */
+	public boolean writeRecord(GameRoom room, ByteBuffer bb) {
+		synchronized(lock) {
+			int index = room.directoryIndex;
+			if(index < 0) {
+				return false;
+			}
+
+			bb.put(records, index * GameRoom.INFO_SIZE, GameRoom.INFO_SIZE);
+			return true;
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock
+	 */
+	private void encode(int index) {
+		ByteBuffer bb = ByteBuffer.wrap(records, index * GameRoom.INFO_SIZE, GameRoom.INFO_SIZE);
+		rooms[index].writeInfo(bb);
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets a snapshot of the current list. The snapshot is retained for the
+	 * caller, who must call {@link Snapshot#release()} when done with it.
+	 * @return the snapshot
+	 */
+	public Snapshot acquire() {
+		while(true) {
+			Snapshot s = snapshot;
+			if(s == null || s.version != version) {
+				s = refresh();
+			}
+			if(s.retain()) {
+				return s;
+			}
+		}
+	}
+
+	private Snapshot refresh() {
+		synchronized(lock) {
+			Snapshot old = snapshot;
+			if(old != null && old.version == version) {
+				return old;
+			}
+
+			Snapshot s = new Snapshot(version, count,
+					Arrays.copyOf(records, count * GameRoom.INFO_SIZE));
+			snapshot = s;
+			if(old != null) {
+				old.release();
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * The room list at a certain version. It is never changed.
+	 *
+	 * The directory holds a reference to its current snapshot, and every
+	 * query holds one while using it; the cached frames are released along
+	 * with the last reference.
+	 */
+	public static final class Snapshot {
+		private final int version;
+		private final int count;
+
+		private final byte[] records;
+
+		private final AtomicInteger refCount;
+
+		/**
+		 * The frames of the whole list, for every framing version
+		 */
+		private final SharedFrame[][] frames;
+
+		private Snapshot(int version, int count, byte[] records) {
+			this.version = version;
+			this.count = count;
+			this.records = records;
+
+			refCount = new AtomicInteger(1);
+			frames = new SharedFrame[FrameUtils.CURRENT_VERSION + 1][];
+		}
+
+		public int getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return the number of rooms
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Adds a reference, unless the snapshot has already been freed
+		 * @return false if the snapshot has been freed
+		 */
+		private boolean retain() {
+			while(true) {
+				int refs = refCount.get();
+				if(refs <= 0) {
+					return false;
+				}
+				if(refCount.compareAndSet(refs, refs + 1)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Drops a reference to the snapshot
+		 */
+		public void release() {
+			if(refCount.decrementAndGet() == 0) {
+				synchronized(this) {
+					for(SharedFrame[] list: frames) {
+						if(list != null) {
+							for(SharedFrame frame: list) {
+								frame.release();
+							}
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Writes a room's record
+		 * @param bb the target buffer
+		 * @param index the room's position in the list
+		 */
+		public void writeRecord(ByteBuffer bb, int index) {
+			bb.put(records, index * GameRoom.INFO_SIZE, GameRoom.INFO_SIZE);
+		}
+
+		/**
+		 * Gets the number of rooms held by a page
+		 * @param protocolVersion the framing version
+		 */
+		public static int getPageCapacity(int protocolVersion) {
+			// legacy frames are padded to a fixed size, so they hold fewer rooms
+			int frameSize = protocolVersion == FrameUtils.VERSION_LEGACY ?
+					FrameUtils.LEGACY_FRAME_SIZE : FrameUtils.MAX_FRAME_SIZE;
+			return (frameSize - PAGE_HEADER_SIZE) / GameRoom.INFO_SIZE;
+		}
+
+		/**
+		 * Writes a {@link Server#PLAYER_ROOM_PAGE} packet:
+		 * 		[4 byte -- kode header][4 byte -- list version][4 byte -- total no. of rooms]
+		 * 		[4 byte -- next cursor, -1 on the last page][4 byte -- no. of rooms in the page]
+		 * 		[48 byte each -- room records, see {@link GameRoom#writeInfo(ByteBuffer)}]
+		 * @param bb the target buffer
+		 * @param from the position of the first room
+		 * @param n the number of rooms
+		 */
+		public void writePage(ByteBuffer bb, int from, int n) {
+			int next = from + n < count ? from + n : -1;
+			bb.putInt(Server.PLAYER_ROOM_PAGE).putInt(version).putInt(count).putInt(next).putInt(n);
+			bb.put(records, from * GameRoom.INFO_SIZE, n * GameRoom.INFO_SIZE);
+		}
+
+		/**
+		 * Writes a {@link Server#PLAYER_ROOM_LIST_END} packet:
+		 * 		[4 byte -- kode header][4 byte -- list version][4 byte -- total no. of rooms]
+		 * 		[4 byte -- next cursor, -1 at the end of the list]
+		 * @param bb the target buffer
+		 * @param next the position of the next room that has not been sent
+		 */
+		public void writeEnd(ByteBuffer bb, int next) {
+			bb.putInt(Server.PLAYER_ROOM_LIST_END).putInt(version).putInt(count)
+				.putInt(next < count ? next : -1);
+		}
+
+		/**
+		 * Gets a part of the list as a source of frames, to be written as the
+		 * connection drains, see {@link Connection#writePaced(Connection.FrameSource)}.
+		 * The frames are encoded when taken, except for the whole list in pages
+		 * without a correlation id, which uses the cached frames, see {@link #getFrames(int, BufferPool)}.
+		 * The source holds the snapshot until it is closed.
+		 * @param from the position of the first room
+		 * @param end the position after the last room
+		 * @param paged true for {@link Server#PLAYER_ROOM_PAGE} packets,
+		 * 			false for a {@link Server#PLAYER_ROOM_INFO} packet per room
+		 * @param protocolVersion the framing version
+		 * @param correlation the request's correlation id, see {@link Player#sendReply(ByteBuffer, int)}
+		 * @param pool the pool the frames are taken from
+		 * @return the source, ending with the end of the list, see {@link #writeEnd(ByteBuffer, int)}
+		 */
+		public Connection.FrameSource list(int from, int end, boolean paged, int protocolVersion,
+				int correlation, BufferPool pool) {
+			if(!retain()) {
+				throw new IllegalStateException("The snapshot has been freed");
+			}
+
+			if(from == 0 && end == count && paged && correlation == Player.NO_CORRELATION) {
+				return new Listing(getFrames(protocolVersion, pool));
+			}
+			return new Listing(from, end, paged ? getPageCapacity(protocolVersion) : 0,
+					protocolVersion, correlation, pool);
+		}
+
+		/**
+		 * The frames of a part of the list
+		 */
+		private final class Listing implements Connection.FrameSource {
+			private final SharedFrame[] cached;
+			private int index;
+
+			private int next;
+			private final int end;
+
+			/**
+			 * Rooms per page, 0 for a packet per room
+			 */
+			private final int perPage;
+
+			private final int protocolVersion;
+			private final int correlation;
+			private final BufferPool pool;
+
+			private boolean ended;
+
+			Listing(SharedFrame[] cached) {
+				this.cached = cached;
+				this.end = count;
+				this.perPage = 0;
+				this.protocolVersion = 0;
+				this.correlation = Player.NO_CORRELATION;
+				this.pool = null;
+			}
+
+			Listing(int from, int end, int perPage, int protocolVersion, int correlation, BufferPool pool) {
+				this.cached = null;
+				this.next = from;
+				this.end = end;
+				this.perPage = perPage;
+				this.protocolVersion = protocolVersion;
+				this.correlation = correlation;
+				this.pool = pool;
+			}
+
+			@Override
+			public SharedFrame next() {
+				if(cached != null) {
+					return index < cached.length ? cached[index++].retain() : null;
+				}
+				if(ended) {
+					return null;
+				}
+
+				int n = Math.min(Math.max(perPage, 1), end - next);
+				ByteBuffer bb = BufferPool.HEAP.acquire(PAGE_HEADER_SIZE + Math.max(n, 0) * GameRoom.INFO_SIZE);
+				if(n <= 0) {
+					writeEnd(bb, end);
+					ended = true;
+				} else if(perPage > 0) {
+					writePage(bb, next, n);
+				} else {
+					bb.putInt(Server.PLAYER_ROOM_INFO);
+					writeRecord(bb, next);
+				}
+				next += Math.max(n, 0);
+
+				SharedFrame frame = Player.encodeReply(bb, correlation, protocolVersion, pool);
+				BufferPool.HEAP.release(bb);
+				return frame;
+			}
+
+			@Override
+			public void close() {
+				release();
+			}
+		}
+
+		/**
+		 * Gets the frames of the whole list, followed by the end of the list.
+		 * They are encoded by the first caller for each framing version.
+		 * The frames stay valid while the caller holds the snapshot.
+		 * @param protocolVersion the framing version
+		 * @param pool the pool the frames are taken from
+		 * @return the frames
+		 */
+		public synchronized SharedFrame[] getFrames(int protocolVersion, BufferPool pool) {
+			SharedFrame[] list = frames[protocolVersion];
+			if(list != null) {
+				return list;
+			}
+
+			int perPage = getPageCapacity(protocolVersion);
+			int pages = (count + perPage - 1) / perPage;
+			list = new SharedFrame[pages + 1];
+
+			ByteBuffer bb = BufferPool.HEAP.acquire(PAGE_HEADER_SIZE + Math.min(perPage, count) * GameRoom.INFO_SIZE);
+			for(int i = 0; i < pages; i++) {
+				int from = i * perPage;
+				bb.clear();
+				writePage(bb, from, Math.min(perPage, count - from));
+				list[i] = SharedFrame.encode(bb, protocolVersion, pool);
+			}
+
+			bb.clear();
+			writeEnd(bb, count);
+			list[pages] = SharedFrame.encode(bb, protocolVersion, pool);
+			BufferPool.HEAP.release(bb);
+
+			frames[protocolVersion] = list;
+			return list;
+		}
+	}
+}
@@ -4,10 +4,24 @@ import java.util.concurrent.*;
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.*;
 
+import util.HashedWheelTimer;
 import util.StringUtils;
 
 public class Server implements Runnable {
+	// protocol codes
+	public static final int PROTOCOL_HELLO = 5;
+	public static final int PROTOCOL_ACCEPT = 7;
+	
+	public static final int UNKNOWN_COMMAND = 9;
+	
+	/**
+	 * Set on the code of a request carrying a correlation id, and on the code
+	 * of its replies, see {@link Player#handleCommand(ByteBuffer)}
+	 */
+	public static final int CORRELATION_FLAG = 0x40000000;
+	
 	// player codes
 	//public static final int PLAYER_JOIN = 61;
 	public static final int PLAYER_NAME_SET = 64;
@@ -19,6 +33,7 @@ public class Server implements Runnable {
 	
 	public static final int PLAYER_CREATE_ROOM = 22;
 	public static final int PLAYER_CREATE_ROOM_SUCCESS = 24;
+	public static final int PLAYER_CREATE_ROOM_FAIL = 30;
 	
 	public static final int PLAYER_DESTROY_ROOM = 26;
 	public static final int PLAYER_DESTROY_ROOM_SUCCESS = 28;
@@ -26,6 +41,20 @@ public class Server implements Runnable {
 	public static final int PLAYER_QUERY_ROOM = 101;
 	public static final int PLAYER_ROOM_INFO = 103;
 	
+	public static final int PLAYER_QUERY_ROOM_PAGE = 105;
+	public static final int PLAYER_ROOM_PAGE = 107;
+	public static final int PLAYER_ROOM_LIST_END = 109;
+	public static final int PLAYER_ROOM_NOT_MODIFIED = 111;
+	
+	public static final int PLAYER_SUBSCRIBE_LOBBY = 113;
+	public static final int PLAYER_UNSUBSCRIBE_LOBBY = 115;
+	public static final int LOBBY_UPDATE = 117;
+	
+	public static final int PLAYER_QUICK_MATCH = 119;
+	public static final int PLAYER_QUICK_MATCH_CANCEL = 121;
+	public static final int PLAYER_QUICK_MATCH_FOUND = 123;
+	public static final int PLAYER_QUICK_MATCH_FAIL = 125;
+	
 	public static final int PLAYER_DISCONNECT = 11;
 	public static final int PLAYER_DISCONNECT_OK = 13;
 	
@@ -39,6 +68,7 @@ public class Server implements Runnable {
 	public final static int ROOM_DESTROYED = 299;
 	
 	public final static int ROOM_PLAYER_INFO = 223;
+	public final static int ROOM_PLAYER_INFO_END = 225;
 	public final static int ROOM_QUERY_PLAYERS = 221;
 	
 	public final static int ROOM_PLAYER_DISCONNECTED = 213;
@@ -49,31 +79,114 @@ public class Server implements Runnable {
 	// game codes
 	public final static int GAME_UPDATE_SELECTION = 311;
 	public final static int GAME_WINNER = 313;
+	public final static int GAME_SELECTION_REJECTED = 315;
+	public final static int GAME_ROUND_RESULT = 317;
 	
 	public final static int GAME_TIME_UPDATE = 355;
 	public final static int GAME_STATE_UPDATE = 357;
 	public final static int GAME_SELECTION_UPDATE = 359;
 	
-	public static int roomId;
-	public static int playerId;
-	
 	private static final int DEFAULT_PORT = 8094;
 	
+	/**
+	 * Connections waiting to be accepted, before new ones are refused.
+	 * Set with -Djankenpon.backlog=n; the system may cap it (net.core.somaxconn).
+	 */
+	private static final int BACKLOG = Integer.getInteger("jankenpon.backlog", 50);
+	
+	// transports
+	public static final int TRANSPORT_BLOCKING = 0;
+	public static final int TRANSPORT_NIO = 1;
+	
+	/**
+	 * The transport used to serve the players.
+	 * Selected with -Djankenpon.transport=blocking|nio
+	 */
+	private int transport;
+	
 	private ServerSocket serverSocket; 
 	
+	private ServerSocketChannel serverChannel;
+	
+	/**
+	 * The event loops serving the players, only used by the NIO transport.
+	 * Every loop is a shard, see {@link #shards}.
+	 */
+	private EventLoop[] eventLoops;
+	
+	/**
+	 * The shards of the server. Every room is pinned to a shard, which runs
+	 * its {@link Mailbox}; see {@link #getShard(int)}.
+	 * With the NIO transport the shards are the event loops, and the players'
+	 * channels follow them to their room's shard. With the blocking transport
+	 * every shard is a thread of its own.
+	 * The number of shards is set with -Djankenpon.shards=n, one per core by default
+	 */
+	private Executor[] shards;
+	
 	private List<Future<?>> futureTask;
 	
 	/**
 	 * The game rooms
 	 */
-	public HashMap<Integer, GameRoom> rooms;
+	public Registry<GameRoom> rooms;
+	
+	/**
+	 * The room list shown to the players
+	 */
+	public RoomDirectory directory;
+	
+	/**
+	 * Pushes the changes of the room list to the subscribed players
+	 */
+	public Lobby lobby;
+	
+	/**
+	 * Runs the countdowns, deadlines and timeouts of the server
+	 */
+	public HashedWheelTimer timer;
+	
+	/**
+	 * Runs the countdowns of the games
+	 */
+	public GameTicker ticker;
+	
+	/**
+	 * Pairs the players asking for a quick match
+	 */
+	public Matchmaker matchmaker;
+	
+	/**
+	 * Duration of a tick of the timer, in milliseconds
+	 */
+	private static final int TIMER_TICK = 10;
+	private static final int TIMER_WHEEL_SIZE = 512;
 
 	/**
 	 * Connected players
 	 */
-	public HashMap<Integer, Player> players;
+	public Registry<Player> players;
+	
+	// executors for the blocking transport
+	public static final int EXECUTOR_POOL = 0;
+	public static final int EXECUTOR_THREAD_PER_PLAYER = 1;
+	
+	private static final int PLAYER_POOL_SIZE = 50;
 	
-	private ScheduledExecutorService playerThreadPool;
+	/**
+	 * Stack size of a player thread, in KB.
+	 * Set with -Djankenpon.playerStackSize=n
+	 */
+	private static final int DEFAULT_PLAYER_STACK_SIZE = 256;
+	
+	/**
+	 * How the players are run by the blocking transport.
+	 * Selected with -Djankenpon.executor=pool|thread; see {@link client.LoadGenerator}
+	 * for the settings of a run with 10 000 players
+	 */
+	private int executor;
+	
+	private ExecutorService playerThreadPool;
 	
 	public static void main(String[] args) {
 		instance.run();
@@ -86,16 +199,51 @@ public class Server implements Runnable {
 	}
 	
 	private Server() {
-		roomId = 0;
+		transport = "nio".equalsIgnoreCase(System.getProperty("jankenpon.transport")) ?
+				TRANSPORT_NIO : TRANSPORT_BLOCKING;
 		try {
-			serverSocket = new ServerSocket(DEFAULT_PORT);
-		
-			rooms = new HashMap<>();
-			players = new HashMap<>();
+			rooms = new Registry<>();
+			timer = new HashedWheelTimer("timer", TIMER_TICK, TimeUnit.MILLISECONDS, TIMER_WHEEL_SIZE);
+			directory = new RoomDirectory();
+			lobby = new Lobby();
+			ticker = new GameTicker(timer);
+			matchmaker = new Matchmaker(timer);
+			players = new Registry<>();
 			
-			playerThreadPool = Executors.newScheduledThreadPool(50);
+			// -Djankenpon.eventLoops=n is still accepted
+			int shardCount = Math.max(1, Integer.getInteger("jankenpon.shards",
+					Integer.getInteger("jankenpon.eventLoops", Runtime.getRuntime().availableProcessors())));
 			
-			futureTask = new LinkedList<>();
+			if(transport == TRANSPORT_NIO) {
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.bind(new InetSocketAddress(DEFAULT_PORT), BACKLOG);
+				
+				eventLoops = new EventLoop[shardCount];
+				for(int i = 0; i < eventLoops.length; i++) {
+					eventLoops[i] = new EventLoop("event-loop-" + i);
+				}
+				shards = eventLoops;
+			} else {
+				serverSocket = new ServerSocket(DEFAULT_PORT, BACKLOG);
+				
+				shards = new Executor[shardCount];
+				ThreadFactory shardThreads = new DaemonThreadFactory("shard-", 0);
+				for(int i = 0; i < shards.length; i++) {
+					shards[i] = Executors.newSingleThreadExecutor(shardThreads);
+				}
+				
+				executor = "thread".equalsIgnoreCase(System.getProperty("jankenpon.executor")) ?
+						EXECUTOR_THREAD_PER_PLAYER : EXECUTOR_POOL;
+				
+				if(executor == EXECUTOR_THREAD_PER_PLAYER) {
+					playerThreadPool = Executors.newCachedThreadPool(new DaemonThreadFactory("player-",
+							Integer.getInteger("jankenpon.playerStackSize", DEFAULT_PLAYER_STACK_SIZE) * 1024L));
+				} else {
+					playerThreadPool = Executors.newScheduledThreadPool(PLAYER_POOL_SIZE);
+				}
+				
+				futureTask = new LinkedList<>();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -103,25 +251,37 @@ public class Server implements Runnable {
 	
 	@Override
 	public void run() {
+		if(transport == TRANSPORT_NIO) {
+			runEventLoops();
+		} else {
+			runBlocking();
+		}
+	}
+	
+	/**
+	 * Serves every player with its own thread from the thread pool
+	 */
+	private void runBlocking() {
 		boolean exit = false;
 		
 		while(!exit) {
 			try {
 				Socket connection = serverSocket.accept();
+				// the replies are small and latency-bound: do not wait for more data
+				connection.setTcpNoDelay(true);
+				int playerId = players.nextId();
 				Player player = Player.build().id(playerId).connection(connection);
 				
 				players.put(playerId, player);
 				
-				ScheduledFuture<?> task = playerThreadPool.schedule(player, 100, TimeUnit.MILLISECONDS); 
+				Future<?> task = playerThreadPool.submit(player); 
 				futureTask.add(task);
-				
-				// increase the playerId
-				playerId++;
 			} catch (Exception e) {
 				e.printStackTrace();
-				for(Future<?> f: futureTask) {
-					if(f.isDone()) {
-						futureTask.remove(f);
+				Iterator<Future<?>> it = futureTask.iterator();
+				while(it.hasNext()) {
+					if(it.next().isDone()) {
+						it.remove();
 					}
 				}
 			}
@@ -130,19 +290,158 @@ public class Server implements Runnable {
 		playerThreadPool.shutdown();
 	}
 	
+	/**
+	 * Accepts the players and spreads them across the event loops.
+	 * The players' commands are read and handled by the event loops.
+	 */
+	private void runEventLoops() {
+		boolean exit = false;
+		
+		for(EventLoop loop: eventLoops) {
+			loop.start();
+		}
+		
+		while(!exit) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				channel.socket().setTcpNoDelay(true);
+				int playerId = players.nextId();
+				Player player = Player.build().id(playerId);
+				
+				players.put(playerId, player);
+				
+				eventLoops[playerId % eventLoops.length].register(channel, player);
+			} catch (ClosedChannelException e) {
+				exit = true;
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		
+		for(EventLoop loop: eventLoops) {
+			loop.shutdown();
+		}
+	}
+	
+	/**
+	 * Creates named daemon threads, e.g. the threads used by {@link #EXECUTOR_THREAD_PER_PLAYER}.
+	 * Every player blocks on its own thread, so those threads are created with
+	 * a small stack to keep the memory cost of an idle player low.
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private String prefix;
+		
+		private long stackSize;
+		
+		private int count;
+		
+		/**
+		 * @param prefix the prefix of the threads' names
+		 * @param stackSize the threads' stack size, 0 for the default size
+		 */
+		public DaemonThreadFactory(String prefix, long stackSize) {
+			this.prefix = prefix;
+			this.stackSize = stackSize;
+		}
+		
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread thread = new Thread(null, r, prefix + count++, stackSize);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
 	/**
 	 * Broadcasts a package across all clients
 	 * @param buffer
-	 * 			the package
+	 * 			the package, written from index 0 up to its position
 	 * @throws IOException
 	 */
-	public void broadcastResponse(byte[] buffer) throws IOException {
-		for(int i = 0; i < playerId; i++) {
-			Player target = players.get(i);
-			if(target != null) {
-				sendResponse(buffer, target.getConnection());
+	public void broadcastResponse(ByteBuffer buffer) throws IOException {
+		Broadcast broadcast = new Broadcast(buffer);
+		for(Player target: players) {
+			broadcast.send(target);
+		}
+		broadcast.release();
+	}
+	
+	/**
+	 * Gets the players whose outbound queue is above the high watermark,
+	 * see {@link Connection}
+	 * @return the lagging players
+	 */
+	public List<Player> getLaggingPlayers() {
+		List<Player> lagging = new ArrayList<>();
+		for(Player p: players) {
+			if(p.isLagging()) {
+				lagging.add(p);
 			}
 		}
+		return lagging;
+	}
+	
+	/**
+	 * Registers a new room and lists it in the {@link RoomDirectory}
+	 * @param room the room
+	 * @return the room's id
+	 */
+	public int addRoom(GameRoom room) {
+		return addRoom(room, true);
+	}
+	
+	/**
+	 * Registers a new room. A room reused from the {@link Matchmaker}'s pool
+	 * gets a new id, but stays on its shard.
+	 * @param room the room
+	 * @param listed whether the room is listed in the {@link RoomDirectory}
+	 * @return the room's id
+	 */
+	public int addRoom(GameRoom room, boolean listed) {
+		int roomId = rooms.nextId();
+		addRoom(room, roomId, listed);
+		return roomId;
+	}
+	
+	/**
+	 * Registers a new room under an id issued by the room registry
+	 * @param room the room
+	 * @param roomId the room's id, see {@link Registry#nextId()}
+	 * @param listed whether the room is listed in the {@link RoomDirectory}
+	 */
+	public void addRoom(GameRoom room, int roomId, boolean listed) {
+		room.setId(roomId);
+		if(room.getShard() == null) {
+			room.setShard(getShard(roomId));
+		}
+		
+		rooms.put(roomId, room);
+		if(listed) {
+			directory.add(room);
+		}
+	}
+	
+	/**
+	 * Gets the shard a room is pinned to
+	 * @param roomId the room's id
+	 * @return the shard
+	 */
+	public Executor getShard(int roomId) {
+		return shards[(roomId & Integer.MAX_VALUE) % shards.length];
+	}
+	
+	/**
+	 * Unregisters a room. When several threads remove the same room, only one
+	 * of them succeeds.
+	 * @param room the room
+	 * @return true if this call has removed the room
+	 */
+	public boolean removeRoom(GameRoom room) {
+		if(!rooms.remove(room.getId(), room)) {
+			return false;
+		}
+		directory.remove(room);
+		return true;
 	}
 	
 	/**
@@ -157,14 +456,12 @@ public class Server implements Runnable {
 	/**
 	 * Sends an one-time response to the client
 	 * @param buffer
-	 * 			the data buffer/the package
-	 * @param connection
-	 * 			client connection
+	 * 			the data buffer/the package, written from index 0 up to its position
+	 * @param target
+	 * 			the player receiving the package
 	 * @throws IOException
 	 */
-	public void sendResponse(byte[] buffer, Socket connection) throws IOException {
-		OutputStream os = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
-		os.write(buffer);
-		os.flush();
+	public void sendResponse(ByteBuffer buffer, Player target) throws IOException {
+		target.sendResponse(buffer);
 	}
 }
@@ -0,0 +1,175 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+import util.BufferPool;
+import util.SharedFrame;
+
+/**
+ * Blocking {@link Connection}, backed by the streams of a {@link Socket}.
+ *
+ * The frames are queued and written by a writer thread, so that a slow client
+ * only blocks its own writer. The writer threads are shared by every connection
+ * and only exist while there is something to write.
+ * @author alvin_nt
+ *
+ */
+public class StreamConnection extends Connection {
+	private static final ExecutorService writers = Executors.newCachedThreadPool(new ThreadFactory() {
+		private int count;
+		
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "writer-" + count++);
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	private Socket socket;
+
+	private DataInputStream is;
+	private OutputStream os;
+	
+	/**
+	 * Frames that have not been written yet
+	 */
+	private Deque<SharedFrame> pendingWrites;
+	
+	/**
+	 * Whether a writer is draining the queue
+	 */
+	private boolean writing;
+	
+	private Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public StreamConnection(Socket socket, Player player) throws IOException {
+		super(player);
+		this.socket = socket;
+
+		is = new DataInputStream(socket.getInputStream());
+		os = new BufferedOutputStream(socket.getOutputStream());
+		
+		pendingWrites = new ArrayDeque<>();
+	}
+
+	public DataInputStream getInputStream() {
+		return is;
+	}
+
+	@Override
+	public void write(SharedFrame frame) {
+		if(socket.isClosed()) {
+			return;
+		}
+		
+		synchronized(pendingWrites) {
+			if(!offer(frame.size())) {
+				return;
+			}
+			pendingWrites.addLast(frame.retain());
+			
+			if(writing) {
+				return;
+			}
+			writing = true;
+		}
+		
+		writers.execute(drain);
+	}
+	
+	/**
+	 * Writes the queued frames, then flushes the stream once the queue is empty
+	 */
+	private void drain() {
+		try {
+			while(true) {
+				SharedFrame frame;
+				synchronized(pendingWrites) {
+					frame = pendingWrites.pollFirst();
+				}
+				
+				if(frame == null) {
+					os.flush();
+					
+					synchronized(pendingWrites) {
+						if(pendingWrites.isEmpty()) {
+							writing = false;
+							return;
+						}
+					}
+					continue;
+				}
+				
+				try {
+					ByteBuffer bb = frame.view();
+					os.write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+				} finally {
+					synchronized(pendingWrites) {
+						written(frame.size(), 1);
+					}
+					frame.release();
+				}
+				pump();
+			}
+		} catch (IOException e) {
+			// the player's reader notices the closed socket and disconnects the player
+			try {
+				close();
+			} catch (IOException e1) {
+				e1.printStackTrace();
+			}
+			
+			synchronized(pendingWrites) {
+				SharedFrame frame;
+				while((frame = pendingWrites.pollFirst()) != null) {
+					written(frame.size(), 1);
+					frame.release();
+				}
+				writing = false;
+			}
+		}
+	}
+	
+	/**
+	 * Closes the socket; the player's reader then notices it and disconnects the player
+	 */
+	@Override
+	protected void evict() {
+		try {
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public BufferPool getBufferPool() {
+		return BufferPool.HEAP;
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+		pump();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !socket.isClosed();
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return socket.getRemoteSocketAddress();
+	}
+}
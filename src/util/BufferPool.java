@@ -0,0 +1,157 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of equally sized {@link ByteBuffer}s, so that handling a packet does
+ * not allocate a new buffer every time.
+ *
+ * Every thread keeps a few buffers of its own; the rest are shared between the
+ * threads. A buffer may be released by another thread than the one that
+ * acquired it.
+ *
+ * Only the buffers are pooled: the tasks handed to a room and the
+ * {@code Broadcast} of a packet are still small objects made per request.
+ */
+public class BufferPool {
+	public static final int BUFFER_SIZE = FrameUtils.HEADER_SIZE + FrameUtils.LEGACY_FRAME_SIZE;
+
+	public static final int LARGE_BUFFER_SIZE = FrameUtils.HEADER_SIZE + FrameUtils.MAX_FRAME_SIZE;
+
+	private static final int LOCAL_LIMIT = 32;
+	private static final int SHARED_LIMIT = 4096;
+
+	private static final int LARGE_LOCAL_LIMIT = 2;
+	private static final int LARGE_SHARED_LIMIT = 32;
+
+	/**
+	 * Heap buffers, for building packets and for stream I/O
+	 */
+	public static final BufferPool HEAP = new BufferPool(BUFFER_SIZE, false, LOCAL_LIMIT, SHARED_LIMIT,
+			new BufferPool(LARGE_BUFFER_SIZE, false, LARGE_LOCAL_LIMIT, LARGE_SHARED_LIMIT, null));
+
+	/**
+	 * Direct buffers, for channel I/O
+	 */
+	public static final BufferPool DIRECT = new BufferPool(BUFFER_SIZE, true, LOCAL_LIMIT, SHARED_LIMIT,
+			new BufferPool(LARGE_BUFFER_SIZE, true, LARGE_LOCAL_LIMIT, LARGE_SHARED_LIMIT, null));
+
+	private final int bufferSize;
+	private final boolean direct;
+
+	private final int localLimit;
+
+	/**
+	 * Pool of larger buffers, used for requests that do not fit this pool's buffers
+	 */
+	private final BufferPool larger;
+
+	private final ThreadLocal<ArrayDeque<ByteBuffer>> local;
+
+	private final ByteBuffer[] shared;
+	private int sharedCount;
+
+	public BufferPool(int bufferSize, boolean direct) {
+		this(bufferSize, direct, LOCAL_LIMIT, SHARED_LIMIT, null);
+	}
+
+	/**
+	 * @param bufferSize the size of the buffers
+	 * @param direct whether the buffers are direct
+	 * @param localLimit the number of buffers kept by every thread
+	 * @param sharedLimit the number of buffers shared by the threads
+	 * @param larger pool used for requests larger than bufferSize, may be null
+	 */
+	public BufferPool(int bufferSize, boolean direct, final int localLimit, int sharedLimit, BufferPool larger) {
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		this.localLimit = localLimit;
+		this.larger = larger;
+
+		local = new ThreadLocal<ArrayDeque<ByteBuffer>>() {
+			@Override
+			protected ArrayDeque<ByteBuffer> initialValue() {
+				return new ArrayDeque<>(localLimit);
+			}
+		};
+		shared = new ByteBuffer[sharedLimit];
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Gets a cleared buffer of {@link #getBufferSize()} bytes
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer bb = local.get().pollFirst();
+
+		if(bb == null) {
+			synchronized(shared) {
+				if(sharedCount > 0) {
+					bb = shared[--sharedCount];
+					shared[sharedCount] = null;
+				}
+			}
+		}
+
+		if(bb == null) {
+			bb = allocate(bufferSize);
+		}
+
+		bb.clear();
+		return bb;
+	}
+
+	/**
+	 * Gets a cleared buffer that holds at least the given number of bytes.
+	 * Larger requests are served by the larger pool, if any; buffers that fit
+	 * no pool are allocated and never pooled.
+	 * @param capacity the number of bytes needed
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire(int capacity) {
+		if(capacity <= bufferSize) {
+			return acquire();
+		} else if(larger != null) {
+			return larger.acquire(capacity);
+		}
+		return allocate(capacity);
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The buffer must not be used afterwards.
+	 * @param bb the buffer
+	 */
+	public void release(ByteBuffer bb) {
+		if(bb.capacity() != bufferSize || bb.isDirect() != direct) {
+			if(larger != null) {
+				larger.release(bb);
+			}
+			return;
+		}
+
+		ArrayDeque<ByteBuffer> cache = local.get();
+		if(cache.size() < localLimit) {
+			cache.addFirst(bb);
+			return;
+		}
+
+		synchronized(shared) {
+			if(sharedCount < shared.length) {
+				shared[sharedCount++] = bb;
+			}
+		}
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+}
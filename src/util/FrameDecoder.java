@@ -0,0 +1,136 @@
+package util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Collects the bytes read from a connection and cuts them into packets.
+ *
+ * A read may return part of a packet, or several packets at once; the bytes
+ * are kept until a packet is complete, and every complete packet is returned
+ * by {@link #nextFrame()}. Usage:
+ * 		decoder.readFrom(input);
+ * 		while((frame = decoder.nextFrame()) != null) {
+ * 			// handle the frame
+ * 		}
+ * A frame is only valid until the next call to readFrom().
+ *
+ * A decoder backed by a direct buffer can only read from channels.
+ */
+public class FrameDecoder {
+	private ByteBuffer buffer;
+
+	/**
+	 * Start of the bytes that have not been returned as a frame yet.
+	 * The end of those bytes is the buffer's position.
+	 */
+	private int readIndex;
+
+	private int version;
+
+	private int maxFrameSize;
+
+	/**
+	 * @param maxFrameSize the largest packet accepted, see {@link FrameUtils}
+	 */
+	public FrameDecoder(int maxFrameSize) {
+		this(maxFrameSize, false);
+	}
+
+	/**
+	 * @param maxFrameSize the largest packet accepted, see {@link FrameUtils}
+	 * @param direct whether the bytes are kept in a direct buffer
+	 */
+	public FrameDecoder(int maxFrameSize, boolean direct) {
+		this.maxFrameSize = maxFrameSize;
+
+		int capacity = Math.max(FrameUtils.LEGACY_FRAME_SIZE, FrameUtils.HEADER_SIZE + maxFrameSize);
+		buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		version = FrameUtils.VERSION_LEGACY;
+	}
+
+	/**
+	 * Sets the framing of the packets that have not been returned yet
+	 * @param version the framing version
+	 */
+	public void setVersion(int version) {
+		this.version = version;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Reads whatever is available from a channel
+	 * @param channel the channel
+	 * @return the number of bytes read, -1 at the end of the stream
+	 * @throws IOException
+	 */
+	public int readFrom(ReadableByteChannel channel) throws IOException {
+		prepareRead();
+		return channel.read(buffer);
+	}
+
+	/**
+	 * Reads from a stream, blocking until at least one byte is available
+	 * @param is the stream
+	 * @return the number of bytes read, -1 at the end of the stream
+	 * @throws IOException
+	 */
+	public int readFrom(InputStream is) throws IOException {
+		prepareRead();
+
+		int n = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		if(n > 0) {
+			buffer.position(buffer.position() + n);
+		}
+		return n;
+	}
+
+	/**
+	 * Gets the next complete packet
+	 * @return the packet, positioned at its code, or null if no complete packet has been read yet
+	 * @throws IOException if the frame header is invalid
+	 */
+	public ByteBuffer nextFrame() throws IOException {
+		int start = readIndex;
+		int length;
+
+		if(version == FrameUtils.VERSION_LEGACY) {
+			length = FrameUtils.LEGACY_FRAME_SIZE;
+		} else {
+			if(buffer.position() - start < FrameUtils.HEADER_SIZE) {
+				return null;
+			}
+
+			length = buffer.getInt(start);
+			if(length < 4 || length > maxFrameSize) {
+				throw new IOException("Invalid frame length: " + length);
+			}
+			start += FrameUtils.HEADER_SIZE;
+		}
+
+		if(buffer.position() - start < length) {
+			return null;
+		}
+
+		ByteBuffer frame = buffer.duplicate();
+		frame.limit(start + length).position(start);
+		readIndex = start + length;
+
+		return frame.slice();
+	}
+
+	/**
+	 * Moves the pending bytes to the start of the buffer
+	 */
+	private void prepareRead() {
+		if(readIndex > 0) {
+			buffer.limit(buffer.position()).position(readIndex);
+			buffer.compact();
+			readIndex = 0;
+		}
+	}
+}
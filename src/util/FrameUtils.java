@@ -0,0 +1,92 @@
+package util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding of the packets sent between the client and the server.
+ *
+ * Two framings are supported:
+ * 		legacy  -- every packet is padded with zeros to {@link #LEGACY_FRAME_SIZE} bytes
+ * 		compact -- [4 byte -- length of the rest][4 byte -- packet code][payload]
+ *
+ * A connection always starts with the legacy framing. The client may send a
+ * PROTOCOL_HELLO packet with the highest version it understands; once the server
+ * replies with PROTOCOL_ACCEPT, both sides use the accepted version.
+ */
+public abstract class FrameUtils {
+	public static final int VERSION_LEGACY = 0;
+	public static final int VERSION_COMPACT = 1;
+
+	/**
+	 * The highest version understood by this code
+	 */
+	public static final int CURRENT_VERSION = VERSION_COMPACT;
+
+	public static final int LEGACY_FRAME_SIZE = 1024;
+
+	/**
+	 * Size of the length header of a compact frame
+	 */
+	public static final int HEADER_SIZE = 4;
+
+	/**
+	 * Largest packet (code and payload) accepted in a compact frame
+	 */
+	public static final int MAX_FRAME_SIZE = 64 * 1024;
+
+	/**
+	 * Largest packet a client may send to the server
+	 */
+	public static final int MAX_REQUEST_SIZE = LEGACY_FRAME_SIZE;
+
+	private static final byte[] PADDING = new byte[LEGACY_FRAME_SIZE];
+
+	/**
+	 * Encodes a packet into a frame
+	 * @param message the packet, written from index 0 up to its position
+	 * @param version the framing version
+	 * @param pool the pool the frame is taken from
+	 * @return the frame, flipped and ready to be written.
+	 * 			It should be released to the pool once written.
+	 */
+	public static ByteBuffer encode(ByteBuffer message, int version, BufferPool pool) {
+		ByteBuffer frame = pool.acquire(getFrameSize(message.position(), version));
+		encode(message, version, frame);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Appends a packet's frame to a buffer, e.g. to write several frames back to back
+	 * @param message the packet, written from index 0 up to its position
+	 * @param version the framing version
+	 * @param target the buffer, with at least {@link #getFrameSize(int, int)} bytes remaining
+	 */
+	public static void encode(ByteBuffer message, int version, ByteBuffer target) {
+		int length = message.position();
+
+		ByteBuffer source = message.duplicate();
+		source.flip();
+
+		if(version == VERSION_LEGACY) {
+			if(length > LEGACY_FRAME_SIZE) {
+				source.limit(LEGACY_FRAME_SIZE);
+			}
+			target.put(source);
+			target.put(PADDING, 0, LEGACY_FRAME_SIZE - source.limit());
+		} else {
+			target.putInt(length);
+			target.put(source);
+		}
+	}
+
+	/**
+	 * Gets the size of a packet's frame
+	 * @param length the length of the packet
+	 * @param version the framing version
+	 * @return the size of the frame, in bytes
+	 */
+	public static int getFrameSize(int length, int version) {
+		return version == VERSION_LEGACY ? LEGACY_FRAME_SIZE : HEADER_SIZE + length;
+	}
+}
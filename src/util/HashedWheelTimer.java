@@ -0,0 +1,327 @@
+package util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Runs delayed and periodic tasks on a single thread, however many tasks are
+ * scheduled.
+ *
+ * The tasks are kept in a wheel of buckets, one bucket per tick. Every tick
+ * the thread moves to the next bucket and runs the tasks that are due; a task
+ * due after a full turn of the wheel stays in its bucket for the remaining
+ * turns. Scheduling and cancelling a task are O(1), and a task runs at most
+ * one tick late.
+ *
+ * The tasks run on the timer's thread, so they must be short and must not block.
+ */
+public class HashedWheelTimer {
+	private static final int STATE_WAITING = 0;
+	private static final int STATE_CANCELLED = 1;
+	private static final int STATE_EXPIRED = 2;
+
+	/**
+	 * Maximum number of new tasks put in the wheel per tick, so that a burst
+	 * of new tasks does not delay the due ones
+	 */
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	private final long tickNanos;
+
+	private final Bucket[] wheel;
+	private final int mask;
+
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+	private final long startTime;
+
+	/**
+	 * Number of ticks since the timer has started, only used by the timer's thread
+	 */
+	private long tick;
+
+	private volatile boolean running;
+
+	private final Thread worker;
+
+	/**
+	 * A scheduled task
+	 */
+	public static final class Timeout {
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+				AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+
+		/**
+		 * Due time, in nanoseconds since the timer has started
+		 */
+		private long deadline;
+
+		/**
+		 * Period in nanoseconds, 0 for a task run once
+		 */
+		private final long period;
+
+		private long remainingRounds;
+
+		private volatile int state;
+
+		// links in the bucket, only used by the timer's thread
+		private Bucket bucket;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(HashedWheelTimer timer, Runnable task, long deadline, long period) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+		}
+
+		/**
+		 * Cancels the task. A task run once cannot be cancelled after it has run.
+		 * @return true if the task has been cancelled by this call
+		 */
+		public boolean cancel() {
+			if(!STATE.compareAndSet(this, STATE_WAITING, STATE_CANCELLED)) {
+				return false;
+			}
+			timer.cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state == STATE_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == STATE_EXPIRED;
+		}
+	}
+
+	/**
+	 * The tasks due in a certain tick, as a doubly linked list
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if(head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		Timeout remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if(timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if(next != null) {
+				next.prev = timeout.prev;
+			}
+			if(timeout == head) {
+				head = next;
+			}
+			if(timeout == tail) {
+				tail = timeout.prev;
+			}
+
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+			return next;
+		}
+	}
+
+	/**
+	 * @param name the name of the timer's thread
+	 * @param tickDuration the duration of a tick
+	 * @param unit the unit of tickDuration
+	 * @param wheelSize the number of buckets, rounded up to a power of two
+	 */
+	public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+		tickNanos = Math.max(1, unit.toNanos(tickDuration));
+
+		int size = 1;
+		while(size < wheelSize) {
+			size <<= 1;
+		}
+		wheel = new Bucket[size];
+		for(int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+
+		startTime = System.nanoTime();
+		running = true;
+
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Runs a task once after a delay
+	 * @param task the task
+	 * @param delay the delay
+	 * @param unit the unit of delay
+	 * @return the scheduled task, to cancel it
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		return add(task, unit.toNanos(delay), 0);
+	}
+
+	/**
+	 * Runs a task periodically, until it is cancelled
+	 * @param task the task
+	 * @param delay the delay of the first run
+	 * @param period the time between the start of two runs
+	 * @param unit the unit of delay and period
+	 * @return the scheduled task, to cancel it
+	 */
+	public Timeout scheduleAtFixedRate(Runnable task, long delay, long period, TimeUnit unit) {
+		if(period <= 0) {
+			throw new IllegalArgumentException("Period must be positive: " + period);
+		}
+		return add(task, unit.toNanos(delay), unit.toNanos(period));
+	}
+
+	private Timeout add(Runnable task, long delayNanos, long periodNanos) {
+		if(!running) {
+			throw new IllegalStateException("Timer has been stopped");
+		}
+
+		Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime + Math.max(0, delayNanos), periodNanos);
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the timer. The tasks that have not run yet are dropped.
+	 */
+	public void stop() {
+		running = false;
+		worker.interrupt();
+	}
+
+	private void work() {
+		while(running) {
+			if(!waitForNextTick()) {
+				continue;
+			}
+
+			removeCancelled();
+			transferPending();
+			expire(wheel[(int) (tick & mask)]);
+			tick++;
+		}
+	}
+
+	/**
+	 * Sleeps until the end of the current tick
+	 * @return false if the timer has been stopped meanwhile
+	 */
+	private boolean waitForNextTick() {
+		long deadline = tickNanos * (tick + 1);
+
+		while(true) {
+			long now = System.nanoTime() - startTime;
+			long sleepMillis = (deadline - now + 999999) / 1000000;
+			if(sleepMillis <= 0) {
+				return true;
+			}
+
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				if(!running) {
+					return false;
+				}
+			}
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while((timeout = cancelled.poll()) != null) {
+			if(timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	private void transferPending() {
+		for(int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			Timeout timeout = pending.poll();
+			if(timeout == null) {
+				break;
+			}
+			if(timeout.state == STATE_WAITING) {
+				place(timeout, tick);
+			}
+		}
+	}
+
+	/**
+	 * Puts a task in the bucket of its due tick
+	 * @param earliest the earliest tick the task may run in; a task that is
+	 * 			already late runs then
+	 */
+	private void place(Timeout timeout, long earliest) {
+		long ticks = Math.max(timeout.deadline / tickNanos, earliest);
+		timeout.remainingRounds = (ticks - tick) / wheel.length;
+		wheel[(int) (ticks & mask)].add(timeout);
+	}
+
+	/**
+	 * Runs the due tasks of a bucket
+	 */
+	private void expire(Bucket bucket) {
+		Timeout timeout = bucket.head;
+		while(timeout != null) {
+			if(timeout.state == STATE_CANCELLED) {
+				timeout = bucket.remove(timeout);
+			} else if(timeout.remainingRounds > 0) {
+				timeout.remainingRounds--;
+				timeout = timeout.next;
+			} else {
+				Timeout next = bucket.remove(timeout);
+				run(timeout);
+				timeout = next;
+			}
+		}
+	}
+
+	private void run(Timeout timeout) {
+		if(timeout.period == 0 && !Timeout.STATE.compareAndSet(timeout, STATE_WAITING, STATE_EXPIRED)) {
+			return;
+		}
+
+		try {
+			timeout.task.run();
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+
+		if(timeout.period > 0 && timeout.state == STATE_WAITING) {
+			timeout.deadline += timeout.period;
+			place(timeout, tick + 1);
+		}
+	}
+}
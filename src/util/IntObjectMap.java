@@ -0,0 +1,315 @@
+package util;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A map from int keys to objects, without boxing the keys.
+ *
+ * The entries are kept in two parallel arrays with open addressing (linear
+ * probing), so a lookup is a few array reads instead of a chain of nodes.
+ * Lookups and iteration do not lock; changes are serialized by a lock.
+ *
+ * A change is published by writing the value before the key, and lookups
+ * read the key before the value, so a reader never sees a key without its value.
+ * A removed slot may be reused for another key while a lookup is reading it,
+ * so a lookup reads the key again after the value, see {@link #get(int)}.
+ * When the table grows, a new table is filled and then published; the old table
+ * is never changed afterwards.
+ *
+ * The keys {@link Integer#MIN_VALUE} and {@link Integer#MIN_VALUE} + 1 are reserved.
+ * @param <V> the type of the values
+ */
+public class IntObjectMap<V> implements Iterable<V> {
+	private static final int EMPTY = Integer.MIN_VALUE;
+	private static final int DELETED = Integer.MIN_VALUE + 1;
+
+	private static final int MIN_CAPACITY = 16;
+
+	private static final class Table<V> {
+		final AtomicIntegerArray keys;
+		final AtomicReferenceArray<V> values;
+		final int mask;
+
+		Table(int capacity) {
+			keys = new AtomicIntegerArray(capacity);
+			values = new AtomicReferenceArray<>(capacity);
+			mask = capacity - 1;
+
+			for(int i = 0; i < capacity; i++) {
+				keys.lazySet(i, EMPTY);
+			}
+		}
+
+		int capacity() {
+			return mask + 1;
+		}
+	}
+
+	private volatile Table<V> table;
+
+	private volatile int size;
+
+	/**
+	 * Slots holding {@link #DELETED}
+	 */
+	private int deleted;
+
+	private final Object lock = new Object();
+
+	public IntObjectMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize the number of entries expected
+	 */
+	public IntObjectMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while(capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		table = new Table<>(capacity);
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static void checkKey(int key) {
+		if(key == EMPTY || key == DELETED) {
+			throw new IllegalArgumentException("Reserved key: " + key);
+		}
+	}
+
+	/**
+	 * Gets the value of a key
+	 * @param key the key
+	 * @return the value, or null if there is no such key
+	 */
+	public V get(int key) {
+		retry:
+		for(;;) {
+			Table<V> t = table;
+
+			for(int i = hash(key) & t.mask, n = 0; n <= t.mask; i = (i + 1) & t.mask, n++) {
+				int k = t.keys.get(i);
+				if(k == key) {
+					V v = t.values.get(i);
+					// the slot may have been removed, then reused for another key,
+					// between the two reads: the value would not be the key's
+					if(t.keys.get(i) != key) {
+						continue retry;
+					}
+					return v;
+				} else if(k == EMPTY) {
+					return null;
+				}
+			}
+			return null;
+		}
+	}
+
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Sets the value of a key
+	 * @param key the key
+	 * @param value the value, not null
+	 * @return the previous value, or null if there was none
+	 */
+	public V put(int key, V value) {
+		checkKey(key);
+		if(value == null) {
+			throw new NullPointerException();
+		}
+
+		synchronized(lock) {
+			Table<V> t = table;
+
+			int slot = find(t, key);
+			if(slot >= 0) {
+				V old = t.values.get(slot);
+				t.values.set(slot, value);
+				return old;
+			}
+
+			if((size + deleted + 1) * 2 > t.capacity()) {
+				t = resize(size + 1);
+				slot = find(t, key);
+			}
+
+			slot = -slot - 1;
+			if(t.keys.get(slot) == DELETED) {
+				deleted--;
+			}
+			// a slot being reused still holds DELETED while its value changes,
+			// so a lookup of the old key sees the key change and retries
+			t.values.set(slot, value);
+			t.keys.set(slot, key);
+			size++;
+
+			return null;
+		}
+	}
+
+	/**
+	 * Removes a key
+	 * @param key the key
+	 * @return the removed value, or null if there was no such key
+	 */
+	public V remove(int key) {
+		synchronized(lock) {
+			Table<V> t = table;
+
+			int slot = find(t, key);
+			if(slot < 0) {
+				return null;
+			}
+
+			V old = t.values.get(slot);
+			removeSlot(t, slot);
+			return old;
+		}
+	}
+
+	/**
+	 * Removes a key, only if it is mapped to the given value
+	 * @param key the key
+	 * @param value the expected value
+	 * @return true if the key has been removed
+	 */
+	public boolean remove(int key, V value) {
+		synchronized(lock) {
+			Table<V> t = table;
+
+			int slot = find(t, key);
+			if(slot < 0 || t.values.get(slot) != value) {
+				return false;
+			}
+
+			removeSlot(t, slot);
+			return true;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Iterates the values. Values added or removed during the iteration may or may not be seen.
+	 */
+	@Override
+	public Iterator<V> iterator() {
+		final Table<V> t = table;
+
+		return new Iterator<V>() {
+			private int index = -1;
+			private V next = advance();
+
+			private V advance() {
+				while(++index <= t.mask) {
+					int k = t.keys.get(index);
+					if(k != EMPTY && k != DELETED) {
+						V v = t.values.get(index);
+						if(v != null) {
+							return v;
+						}
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public V next() {
+				if(next == null) {
+					throw new NoSuchElementException();
+				}
+				V v = next;
+				next = advance();
+				return v;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Finds the slot of a key. Must be called while holding the lock.
+	 * @return the slot holding the key, or (-slot - 1) of the slot where the key should be inserted
+	 */
+	private int find(Table<V> t, int key) {
+		int insertAt = -1;
+
+		for(int i = hash(key) & t.mask, n = 0; n <= t.mask; i = (i + 1) & t.mask, n++) {
+			int k = t.keys.get(i);
+			if(k == key) {
+				return i;
+			} else if(k == EMPTY) {
+				return -(insertAt >= 0 ? insertAt : i) - 1;
+			} else if(k == DELETED && insertAt < 0) {
+				insertAt = i;
+			}
+		}
+		return -insertAt - 1;
+	}
+
+	/**
+	 * Empties a slot: the value is cleared before the key is marked as deleted,
+	 * so a lookup reading the key before and after the value gets null or retries.
+	 * Must be called while holding the lock.
+	 */
+	private void removeSlot(Table<V> t, int slot) {
+		t.values.set(slot, null);
+		t.keys.set(slot, DELETED);
+		size--;
+		deleted++;
+	}
+
+	/**
+	 * Copies the entries into a new table, then publishes it.
+	 * Must be called while holding the lock.
+	 */
+	private Table<V> resize(int expectedSize) {
+		Table<V> old = table;
+
+		int capacity = MIN_CAPACITY;
+		while(capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		// grow ahead, so that a growing map is not copied on every insert
+		if(capacity <= old.capacity() && expectedSize * 4 > old.capacity()) {
+			capacity = old.capacity() * 2;
+		}
+
+		Table<V> t = new Table<>(capacity);
+		for(int i = 0; i <= old.mask; i++) {
+			int k = old.keys.get(i);
+			if(k != EMPTY && k != DELETED) {
+				int slot = -find(t, k) - 1;
+				t.values.lazySet(slot, old.values.get(i));
+				t.keys.lazySet(slot, k);
+			}
+		}
+
+		deleted = 0;
+		table = t;
+		return t;
+	}
+}
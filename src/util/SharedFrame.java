@@ -0,0 +1,121 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame that is shared by every connection it is written to.
+ *
+ * The frame is encoded once and never changed afterwards; every connection
+ * writes its own {@link #view()} of it. The frame is reference counted: each
+ * holder calls {@link #retain()} and {@link #release()}, and the buffer goes
+ * back to its pool once the last holder has released it.
+ *
+ * Several frames may also be written back to back into one pooled buffer, see
+ * {@link #wrap(ByteBuffer, BufferPool)}; each of them is then sent as a
+ * {@link #slice(int, int)}, and the buffer goes back to its pool once every
+ * slice has been released.
+ */
+public final class SharedFrame {
+	/**
+	 * The pooled buffer
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * The part of the buffer holding the frame
+	 */
+	private final ByteBuffer frame;
+
+	private final BufferPool pool;
+
+	/**
+	 * References to the buffer, shared with the slices
+	 */
+	private final AtomicInteger refCount;
+
+	private SharedFrame(ByteBuffer buffer, ByteBuffer frame, BufferPool pool, AtomicInteger refCount) {
+		this.buffer = buffer;
+		this.frame = frame;
+		this.pool = pool;
+		this.refCount = refCount;
+	}
+
+	/**
+	 * Encodes a packet into a shared frame, see {@link FrameUtils#encode(ByteBuffer, int, BufferPool)}.
+	 * The caller holds the first reference.
+	 * @param message the packet, written from index 0 up to its position
+	 * @param version the framing version
+	 * @param pool the pool the frame is taken from
+	 * @return the frame
+	 */
+	public static SharedFrame encode(ByteBuffer message, int version, BufferPool pool) {
+		ByteBuffer frame = FrameUtils.encode(message, version, pool);
+		return new SharedFrame(frame, frame, pool, new AtomicInteger(1));
+	}
+
+	/**
+	 * Takes a pooled buffer the caller writes several frames to, see
+	 * {@link FrameUtils#encode(ByteBuffer, int, ByteBuffer)}. The frames are sent
+	 * with {@link #slice(int, int)}. The caller holds the first reference.
+	 * @param buffer the buffer
+	 * @param pool the pool the buffer is taken from
+	 * @return the shared buffer
+	 */
+	public static SharedFrame wrap(ByteBuffer buffer, BufferPool pool) {
+		return new SharedFrame(buffer, buffer, pool, new AtomicInteger(1));
+	}
+
+	/**
+	 * Gets one of the frames written to the buffer. The slice holds a
+	 * reference to the buffer, which the caller must release.
+	 * The frame must have been written before the slice is sent.
+	 * @param offset the position of the frame in the buffer
+	 * @param length the size of the frame
+	 * @return the frame
+	 */
+	public SharedFrame slice(int offset, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.limit(offset + length).position(offset);
+
+		retain();
+		return new SharedFrame(buffer, view.slice(), pool, refCount);
+	}
+
+	/**
+	 * Adds a reference to the frame
+	 * @return this frame
+	 */
+	public SharedFrame retain() {
+		if(refCount.getAndIncrement() <= 0) {
+			throw new IllegalStateException("Frame has already been released");
+		}
+		return this;
+	}
+
+	/**
+	 * Drops a reference to the frame
+	 */
+	public void release() {
+		int count = refCount.decrementAndGet();
+		if(count == 0) {
+			pool.release(buffer);
+		} else if(count < 0) {
+			throw new IllegalStateException("Frame released too many times");
+		}
+	}
+
+	/**
+	 * @return a buffer over the whole frame, with its own position and limit
+	 */
+	public ByteBuffer view() {
+		return frame.duplicate();
+	}
+
+	/**
+	 * @return the size of the frame in bytes
+	 */
+	public int size() {
+		return frame.remaining();
+	}
+}
@@ -1,6 +1,7 @@
 package util;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public abstract class StringUtils {
 	public final static String newline = System.getProperty("line.separator");
@@ -12,7 +13,8 @@ public abstract class StringUtils {
 	public static String getName(ByteBuffer bb) {
 		StringBuilder sb = new StringBuilder();
 		
-		for(int i = 0; i < NAME_MAXLENGTH; i++) {
+		int length = Math.min(NAME_MAXLENGTH, bb.remaining());
+		for(int i = 0; i < length; i++) {
 			sb.append((char)(bb.get() & 0xFF));
 		}
 		
@@ -22,10 +24,33 @@ public abstract class StringUtils {
 	public static String getMessage(ByteBuffer bb) {
 		StringBuilder sb = new StringBuilder();
 		
-		for(int i = 0; i < MESSAGE_MAXLENGTH; i++) {
+		int length = Math.min(MESSAGE_MAXLENGTH, bb.remaining());
+		for(int i = 0; i < length; i++) {
 			sb.append((char)(bb.get() & 0xFF));
 		}
 		
 		return sb.toString();
 	}
+	
+	/**
+	 * Writes a name, padded with zeros to {@link #NAME_MAXLENGTH} bytes
+	 * @param bb the target buffer
+	 * @param name the name
+	 */
+	public static void putName(ByteBuffer bb, String name) {
+		byte[] bytes = name.getBytes();
+		for(int i = 0; i < NAME_MAXLENGTH; i++) {
+			bb.put(i < bytes.length ? bytes[i] : 0x00);
+		}
+	}
+	
+	/**
+	 * Encodes a message, padded with zeros to {@link #MESSAGE_MAXLENGTH} bytes,
+	 * so that a constant message is only encoded once
+	 * @param message the message
+	 * @return the bytes of the message
+	 */
+	public static byte[] toMessage(String message) {
+		return Arrays.copyOf(message.getBytes(), MESSAGE_MAXLENGTH);
+	}
 }